@@ -0,0 +1,230 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Reachability bitmaps of the branch heads over commit-graph positions.
+ *  Bit i of the bitmap of a commit is set if the commit at position i of
+ *  the CommitGraph is that commit or one of its ancestors, so questions
+ *  such as "is A an ancestor of B" or "which commits are on X but not on
+ *  Y" are answered by bitmap lookups instead of history walks.
+ *
+ *  The bitmaps file is laid out as
+ *
+ *      "GLBM"  version(4)  count(4)
+ *      count x { tip sha(20)  markers(4)  encoded words }
+ *
+ *  where the 64-bit words of each bitmap are run-length encoded as in
+ *  EWAH: every marker word holds the value of a run of identical clean
+ *  words (bit 63), the length of the run (bits 32-62) and the number of
+ *  literal words that follow the marker (bits 0-31).
+ *
+ *  Bitmaps are kept for the current branch heads only.  The bitmap of a
+ *  new head is built by walking back from it until commits already covered
+ *  by a stored bitmap, usually the previous head of the branch.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class Bitmaps {
+
+    private static final int VERSION = 1;
+    private static final long RUN_BIT = 1L << 63;
+    private static final long MAX_RUN = (1L << 31) - 1;
+    private static final long MAX_LITERALS = (1L << 32) - 1;
+
+    /** Bitmaps of the stored heads, by commit SHA, loaded on first use. */
+    private static Map<String, BitSet> tips;
+
+    /** Returns the positions of commit SHA and its ancestors in the commit
+     *  graph. */
+    static BitSet reachable(String sha) throws IllegalArgumentException {
+        load();
+        BitSet stored = tips.get(sha);
+        if (stored != null) {
+            return stored;
+        }
+        CommitGraph graph = CommitGraph.get(sha);
+        Map<Integer, BitSet> shortcuts = new HashMap<>();
+        for (Map.Entry<String, BitSet> e : tips.entrySet()) {
+            int pos = graph.find(e.getKey());
+            if (pos != CommitGraph.NONE) {
+                shortcuts.put(pos, e.getValue());
+            }
+        }
+
+        BitSet bits = new BitSet(graph.size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(graph.find(sha));
+        while (!stack.isEmpty()) {
+            int c = stack.pop();
+            if (c == CommitGraph.NONE || bits.get(c)) {
+                continue;
+            }
+            BitSet known = shortcuts.get(c);
+            if (known != null) {
+                bits.or(known);
+                continue;
+            }
+            bits.set(c);
+            stack.push(graph.parent(c));
+            stack.push(graph.secParent(c));
+        }
+        return bits;
+    }
+
+    /** Returns true if commit A is commit B or one of its ancestors. */
+    static boolean isAncestor(String a, String b) throws IllegalArgumentException {
+        BitSet bits = reachable(b);
+        int pos = CommitGraph.get(a).find(a);
+        return pos != CommitGraph.NONE && bits.get(pos);
+    }
+
+    /** Stores the bitmaps of the current branch heads, building those that
+     *  are missing and dropping those of commits that are no longer heads.
+     *  Called after a command moves a branch. */
+    static void update() throws IllegalArgumentException {
+        load();
+        Map<String, BitSet> next = new HashMap<>();
+        for (String head : CommitGraph.branchHeads()) {
+            next.put(head, reachable(head));
+        }
+        if (!next.keySet().equals(tips.keySet())) {
+            tips = next;
+            LockFile.locked(LockFile.DERIVED, () -> {
+                save();
+                return null;
+            });
+        }
+    }
+
+    /** Drops the loaded bitmaps, so that they are read again on next use.
+     *  Called by Daemon when another process changed the file. */
+    static void forget() {
+        tips = null;
+    }
+
+    /** Forgets every stored bitmap.  Called when commit-graph positions
+     *  change, holding LockFile.DERIVED. */
+    static void clear() {
+        tips = new HashMap<>();
+        Repository.BITMAPS.delete();
+    }
+
+    /* FILE */
+
+    private static void load() {
+        if (tips != null) {
+            return;
+        }
+        tips = new HashMap<>();
+        if (!Repository.BITMAPS.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(Repository.BITMAPS.toPath())))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (magic[0] != 'G' || magic[1] != 'L' || magic[2] != 'B' || magic[3] != 'M'
+                    || in.readInt() != VERSION) {
+                return;
+            }
+            int n = in.readInt();
+            byte[] sha = new byte[Utils.UID_LENGTH / 2];
+            for (int i = 0; i < n; i += 1) {
+                in.readFully(sha);
+                tips.put(Utils.sha1FromBytes(sha), decode(in));
+            }
+        } catch (IOException excp) {
+            // Unusable file: the bitmaps are rebuilt on the next update
+            tips = new HashMap<>();
+        }
+    }
+
+    private static void save() {
+        try {
+            File tmp = File.createTempFile("bitmaps", ".tmp", Repository.GITLET_DIR);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tmp.toPath())))) {
+                out.writeBytes("GLBM");
+                out.writeInt(VERSION);
+                out.writeInt(tips.size());
+                for (Map.Entry<String, BitSet> e : tips.entrySet()) {
+                    out.write(Utils.sha1ToBytes(e.getKey()));
+                    encode(e.getValue(), out);
+                }
+            }
+            Files.move(tmp.toPath(), Repository.BITMAPS.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes the words of BITS as markers each followed by its literals. */
+    static void encode(BitSet bits, DataOutputStream out) throws IOException {
+        long[] words = bits.toLongArray();
+        int markers = 0;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        int i = 0;
+        while (i < words.length) {
+            long clean = words[i] == -1L ? -1L : 0L;
+            long run = 0;
+            while (i < words.length && run < MAX_RUN && (words[i] == 0L || words[i] == -1L)
+                    && words[i] == clean) {
+                run += 1;
+                i += 1;
+            }
+            int start = i;
+            while (i < words.length && i - start < MAX_LITERALS && words[i] != 0L && words[i] != -1L) {
+                i += 1;
+            }
+            body.writeLong((clean == -1L ? RUN_BIT : 0) | (run << 32) | (i - start));
+            for (int k = start; k < i; k += 1) {
+                body.writeLong(words[k]);
+            }
+            markers += 1;
+        }
+        out.writeInt(markers);
+        bytes.writeTo(out);
+    }
+
+    /** Reads a bitmap written by encode from IN. */
+    static BitSet decode(DataInputStream in) throws IOException {
+        int markers = in.readInt();
+        long[] words = new long[16];
+        int n = 0;
+        for (int m = 0; m < markers; m += 1) {
+            long marker = in.readLong();
+            long clean = (marker & RUN_BIT) != 0 ? -1L : 0L;
+            long run = (marker >>> 32) & MAX_RUN;
+            long literals = marker & MAX_LITERALS;
+            long needed = n + run + literals;
+            if (needed > words.length) {
+                long[] grown = new long[(int) Math.max(needed, 2L * words.length)];
+                System.arraycopy(words, 0, grown, 0, n);
+                words = grown;
+            }
+            for (long k = 0; k < run; k += 1) {
+                words[n++] = clean;
+            }
+            for (long k = 0; k < literals; k += 1) {
+                words[n++] = in.readLong();
+            }
+        }
+        return BitSet.valueOf(Arrays.copyOf(words, n));
+    }
+}
@@ -1,32 +1,380 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Formatter;
 
+/** The saved contents of a file.
+ *  A Blob only carries the hash and size of the contents; the bytes
+ *  themselves are hashed and copied in CHUNK_SIZE pieces, so memory use
+ *  does not depend on the size of the file.  Stored blobs use the object
+ *  store format (see ObjectStore); blobs written as raw bytes or as
+ *  serialized Strings by older versions are still readable.
+ */
 public class Blob implements Serializable {
+    private static final long serialVersionUID = -6955527103522153029L;
+
+    /** Size of the buffer used to stream file contents. */
+    static final int CHUNK_SIZE = 64 * 1024;
+
     private String hash;
-    private String content;
+    private long size;
+    /** Contents of a blob written by the old String based format. */
+    private transient byte[] legacyContent;
 
     public Blob() {
-        this.content = "";
-        String sha = "Blob " + this.content.length() + "\0" + this.content;
-        this.hash = Utils.sha1(sha);
+        this.size = 0;
+        this.hash = Utils.sha1("Blob 0\0");
     }
 
     public Blob(File path) throws IllegalArgumentException
     {
-        this.content = new String( Utils.readContents(path), StandardCharsets.UTF_8);
-        String sha = "Blob " + this.content.length() + "\0" + this.content;
-        this.hash = Utils.sha1(sha);
+        if (!path.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        this.size = path.length();
+        this.hash = stream(path, null, this.size);
+    }
+
+    private Blob(String hash, long size) {
+        this.hash = hash;
+        this.size = size;
     }
 
     public String getHash() {
         return hash;
     }
 
-    public String getContent() {
-        return content;
+    public long getSize() {
+        return size;
+    }
+
+    /** Hashes the file at PATH and copies its contents into the blobs
+     *  directory in a single pass.  Returns the resulting Blob. */
+    public static Blob store(File path) throws IllegalArgumentException {
+        if (!path.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        File tmp;
+        try {
+            tmp = File.createTempFile("blob", ".tmp", Repository.BLOBS);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            long size = path.length();
+            String hash;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), CHUNK_SIZE)) {
+                ObjectStore.writeHeader(out, ObjectStore.BLOB, ObjectStore.codec, size);
+                try (OutputStream encoded = ObjectStore.codec.wrap(out)) {
+                    hash = stream(path, encoded, size);
+                }
+            }
+            File dest = Utils.join(Repository.BLOBS, hash);
+            if (!ObjectStore.contains(Repository.BLOBS, hash)) {
+                Files.move(tmp.toPath(), dest.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            return new Blob(hash, size);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            // Gone if it was moved into place
+            tmp.delete();
+        }
+    }
+
+    /** Returns the loose file holding the stored blob HASH. */
+    public static File storedFile(String hash) {
+        return Utils.join(Repository.BLOBS, hash);
+    }
+
+    /** Overwrites DEST with the contents of the stored blob HASH. */
+    public static void writeTo(String hash, File dest) throws IllegalArgumentException {
+        if (dest.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        File dir = dest.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("cannot create directory " + dir);
+        }
+        try (FileChannel out = FileChannel.open(dest.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            transferTo(hash, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Appends the contents of the stored blob HASH to OUT.  Contents
+     *  stored unencoded are copied by the kernel (see ObjectStore.Region)
+     *  and small blobs come from the cache of ObjectStore.readBlob; others
+     *  are decoded in CHUNK_SIZE pieces. */
+    public static void transferTo(String hash, WritableByteChannel out) throws IllegalArgumentException {
+        try {
+            ObjectStore.Region raw = region(hash);
+            if (raw != null) {
+                raw.transferTo(out);
+                return;
+            }
+            byte[] cached = ObjectStore.readBlob(hash);
+            if (cached != null) {
+                ByteBuffer contents = ByteBuffer.wrap(cached);
+                while (contents.hasRemaining()) {
+                    out.write(contents);
+                }
+                return;
+            }
+            try (InputStream in = ObjectStore.openBody(Repository.BLOBS, hash, ObjectStore.BLOB)) {
+                if (in != null) {
+                    byte[] buf = new byte[CHUNK_SIZE];
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        ByteBuffer chunk = ByteBuffer.wrap(buf, 0, n);
+                        while (chunk.hasRemaining()) {
+                            out.write(chunk);
+                        }
+                    }
+                    return;
+                }
+            }
+            Blob legacy = Utils.readObject(storedFile(hash), Blob.class);
+            out.write(ByteBuffer.wrap(legacy.legacyContent));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the contents of the stored blob HASH as a read-only buffer,
+     *  for comparing versions of a file.  Contents stored unencoded are
+     *  memory-mapped where they lie and small blobs come from the cache;
+     *  others are decoded into a temporary file that is mapped, so the heap
+     *  used does not grow with the size of the blob. */
+    static ByteBuffer map(String hash) throws IllegalArgumentException {
+        try {
+            ObjectStore.Region raw = region(hash);
+            if (raw != null) {
+                return raw.map();
+            }
+            byte[] cached = ObjectStore.readBlob(hash);
+            if (cached != null) {
+                return ByteBuffer.wrap(cached).asReadOnlyBuffer();
+            }
+            File dir = CheckoutWriter.TMP;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create directory " + dir);
+            }
+            File tmp = File.createTempFile("map-", ".tmp", dir);
+            try {
+                writeTo(hash, tmp);
+                return new ObjectStore.Region(tmp, 0, tmp.length()).map();
+            } finally {
+                // The mapping outlives the file on the systems gitlet runs on
+                if (!tmp.delete()) {
+                    tmp.deleteOnExit();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns where the contents of the stored blob HASH lie unencoded,
+     *  including loose blobs written as raw bytes by older versions, or
+     *  null. */
+    private static ObjectStore.Region region(String hash) throws IOException {
+        File stored = storedFile(hash);
+        ObjectStore.Region raw = ObjectStore.rawBlob(hash);
+        if (raw != null || !stored.isFile()) {
+            return raw;
+        }
+        byte[] header;
+        try (InputStream in = Files.newInputStream(stored.toPath())) {
+            header = in.readNBytes(ObjectStore.HEADER_SIZE);
+        } catch (NoSuchFileException excp) {
+            // Packed meanwhile by another process
+            return ObjectStore.rawBlob(hash);
+        }
+        if (ObjectStore.parseHeader(header) != null || isLegacy(stored)) {
+            return null;
+        }
+        return new ObjectStore.Region(stored, 0, stored.length());
+    }
+
+    /** Reads SIZE bytes of the file at PATH in CHUNK_SIZE pieces, feeding
+     *  them to the SHA-1 digest and, if OUT is not null, to OUT.  Returns
+     *  the hash of the blob header followed by the contents.
+     *
+     *  The header gives the length of the contents as the old String based
+     *  format counted it: in UTF-16 chars of the contents read as UTF-8.
+     *  That is the size for ASCII files and for files that are not UTF-8,
+     *  so only the other files are read a second time, to hash them under
+     *  their length in chars; their hashes then match the ones in
+     *  repositories written by older versions. */
+    private static String stream(File path, OutputStream out, long size) {
+        CharCounter chars = new CharCounter();
+        String hash = digest(path, out, size, size, chars);
+        long length = chars.length();
+        if (length < 0 || length == size) {
+            return hash;
+        }
+        return digest(path, null, size, length, null);
+    }
+
+    /** Returns the hash of the header for contents of LENGTH followed by
+     *  the SIZE bytes of the file at PATH, which are also written to OUT
+     *  and counted by CHARS unless those are null. */
+    private static String digest(File path, OutputStream out, long size, long length, CharCounter chars) {
+        try (FileChannel in = FileChannel.open(path.toPath(),
+                StandardOpenOption.READ)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(("Blob " + length + "\0").getBytes(StandardCharsets.UTF_8));
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < CHUNK_SIZE) {
+                    buffer.limit((int) remaining);
+                }
+                int n = in.read(buffer);
+                if (n < 0) {
+                    throw new IllegalArgumentException("file changed while reading: " + path);
+                }
+                remaining -= n;
+                buffer.flip();
+                md.update(buffer.array(), 0, buffer.limit());
+                if (out != null) {
+                    out.write(buffer.array(), 0, buffer.limit());
+                }
+                if (chars != null) {
+                    chars.update(buffer);
+                }
+            }
+            Formatter result = new Formatter();
+            for (byte b : md.digest()) {
+                result.format("%02x", b);
+            }
+            return result.toString();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Counts the UTF-16 chars of contents read as UTF-8, chunk by chunk.
+     *  Chunks are only scanned for non-ASCII bytes until one is found; from
+     *  then on they are decoded. */
+    private static class CharCounter {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        /** Bytes not decoded yet: the end of a sequence split by a chunk. */
+        private final ByteBuffer pending = ByteBuffer.allocate(CHUNK_SIZE + 8);
+        private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+        private long count;
+        private boolean decoding;
+        private boolean malformed;
+
+        /** Counts the chars of CHUNK, from its start to its limit. */
+        void update(ByteBuffer chunk) {
+            if (malformed) {
+                return;
+            }
+            if (!decoding) {
+                int i = 0;
+                while (i < chunk.limit() && chunk.get(i) >= 0) {
+                    i += 1;
+                }
+                if (i == chunk.limit()) {
+                    count += i;
+                    return;
+                }
+                decoding = true;
+            }
+            pending.put(chunk.duplicate());
+            pending.flip();
+            decode(false);
+            pending.compact();
+        }
+
+        /** Returns the number of chars of all the chunks, or -1 if they are
+         *  not UTF-8. */
+        long length() {
+            if (decoding && !malformed) {
+                pending.flip();
+                decode(true);
+                chars.clear();
+                if (!malformed && decoder.flush(chars).isError()) {
+                    malformed = true;
+                }
+                count += chars.position();
+            }
+            return malformed ? -1 : count;
+        }
+
+        private void decode(boolean last) {
+            while (!malformed) {
+                chars.clear();
+                CoderResult r = decoder.decode(pending, chars, last);
+                count += chars.position();
+                if (r.isError()) {
+                    malformed = true;
+                } else if (!r.isOverflow()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Returns true if STORED was written as a serialized Blob holding its
+     *  contents as a String. */
+    private static boolean isLegacy(File stored) throws IOException {
+        if (stored.length() < 4) {
+            return false;
+        }
+        byte[] magic = new byte[4];
+        try (FileChannel in = FileChannel.open(stored.toPath(), StandardOpenOption.READ)) {
+            in.read(ByteBuffer.wrap(magic));
+        }
+        return (magic[0] & 0xff) == 0xac && (magic[1] & 0xff) == 0xed
+                && magic[2] == 0x00 && magic[3] == 0x05;
+    }
+
+    /** Reads a serialized Blob, keeping the String contents of the old
+     *  format so that existing repositories can still be checked out. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.hash = (String) fields.get("hash", null);
+        this.size = fields.get("size", 0L);
+        String content;
+        try {
+            content = (String) fields.get("content", null);
+        } catch (IllegalArgumentException excp) {
+            // Written by the streaming format: there is no content field
+            content = null;
+        }
+        if (content != null) {
+            this.legacyContent = content.getBytes(StandardCharsets.UTF_8);
+            this.size = this.legacyContent.length;
+        }
     }
 
 }
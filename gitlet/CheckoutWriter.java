@@ -0,0 +1,353 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Writes the files of a checkout so that an interrupted checkout never
+ *  leaves a torn working directory.
+ *
+ *  prepare (or addAll) writes every file into a temporary file in the TMP
+ *  directory, in parallel by Workers, and add writes contents that are not
+ *  stored yet, such as merged files, before anything in the working
+ *  directory is touched; a writer can also be given files to delete, and the refs and
+ *  index to update once the files have landed.  install first records all
+ *  of this in the JOURNAL, then deletes the files, renames each temporary
+ *  file over its destination (a rename replaces the file as a whole), sets
+ *  the refs, clears the index and removes the journal.  A process killed
+ *  in between leaves the journal behind, and the next gitlet command
+ *  finishes the checkout from it (see recover) before doing anything else,
+ *  so the working directory, HEAD, the branches and the index always end
+ *  up all old or all new.  The journal is laid out as
+ *
+ *      "GLCJ"  version(4)
+ *      write count(4), then per file: temporary name  path
+ *      delete count(4), then per file: path
+ *      ref count(4), then per ref: name  expected  value
+ *      clear index(1)
+ *
+ *  where ref names are relative to .gitlet, and a ref is only set if it
+ *  still holds EXPECTED (or is missing, for a null EXPECTED).
+ *
+ *  @author Abdelrahman Ezz
+ */
+class CheckoutWriter {
+
+    /** The directory holding temporary files.  It is inside .gitlet, so
+     *  that temporary files are on the file system of the working directory
+     *  but not in it. */
+    static final File TMP = Utils.join(Repository.GITLET_DIR, "tmp");
+
+    /** The journal of a checkout being installed. */
+    static final File JOURNAL = Utils.join(Repository.GITLET_DIR, "checkout-journal");
+
+    /** Prefix of the names of checkout temporary files. */
+    private static final String PREFIX = "checkout-";
+    private static final int JOURNAL_VERSION = 1;
+    /** Numbers the temporary files of this process. */
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    /** The contents of a file, written to a channel. */
+    interface Contents {
+        void writeTo(FileChannel out) throws IOException;
+    }
+
+    private final List<File> temps = new ArrayList<>();
+    /** Destination of each temporary file, relative to the working
+     *  directory. */
+    private final List<String> paths = new ArrayList<>();
+    private final List<String> deletes = new ArrayList<>();
+    /** Refs to set: name relative to .gitlet, expected and new value. */
+    private final List<String[]> refs = new ArrayList<>();
+    private boolean clearIndex;
+    private int deleted;
+
+    /** Returns a writer holding the contents of FILES, a map from paths
+     *  relative to the working directory to blob hashes, in temporary
+     *  files.  If any file cannot be written, the temporary files are
+     *  removed and IllegalArgumentException is thrown. */
+    static CheckoutWriter prepare(Map<String, String> files) throws IllegalArgumentException {
+        CheckoutWriter writer = create();
+        writer.addAll(files);
+        return writer;
+    }
+
+    /** Returns a writer with nothing prepared yet. */
+    static CheckoutWriter create() throws IllegalArgumentException {
+        makeTmp();
+        // Temporary files of a checkout killed before it got to its journal;
+        // the index lock keeps other checkouts out meanwhile
+        if (!JOURNAL.exists()) {
+            clean();
+        }
+        return new CheckoutWriter();
+    }
+
+    private CheckoutWriter() {
+    }
+
+    /** Writes the contents of FILES, a map from paths relative to the
+     *  working directory to blob hashes, aside as new working files.  If any
+     *  file cannot be written, every file of this writer is removed and
+     *  IllegalArgumentException is thrown. */
+    void addAll(Map<String, String> files) throws IllegalArgumentException {
+        List<Map.Entry<String, String>> entries = new ArrayList<>(files.entrySet());
+        List<Object> written = Workers.map(entries, e -> {
+            try {
+                File tmp = newTemp();
+                try {
+                    Blob.writeTo(e.getValue(), tmp);
+                    return tmp;
+                } catch (IllegalArgumentException excp) {
+                    tmp.delete();
+                    return excp;
+                }
+            } catch (IOException excp) {
+                return new IllegalArgumentException(excp.getMessage());
+            }
+        });
+
+        IllegalArgumentException failure = null;
+        for (int i = 0; i < entries.size(); i += 1) {
+            Object w = written.get(i);
+            if (w instanceof File) {
+                temps.add((File) w);
+                paths.add(entries.get(i).getKey());
+            } else {
+                failure = (IllegalArgumentException) w;
+            }
+        }
+        if (failure != null) {
+            abort();
+            throw failure;
+        }
+    }
+
+    /** Writes CONTENTS aside as the new working file PATH, and returns the
+     *  temporary file holding them, so that they can be stored as well. */
+    File add(String path, Contents contents) throws IllegalArgumentException {
+        try {
+            File tmp = newTemp();
+            temps.add(tmp);
+            paths.add(path);
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                contents.writeTo(out);
+            }
+            return tmp;
+        } catch (IOException excp) {
+            abort();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Deletes the working file PATH on install, with the directories it
+     *  leaves empty. */
+    void delete(String path) {
+        deletes.add(path);
+    }
+
+    /** Sets the ref REF (HEAD or a branch) to VALUE once the files have
+     *  landed, provided it still holds what it holds now. */
+    void setRef(File ref, String value) {
+        String name = Repository.GITLET_DIR.getAbsoluteFile().toPath()
+                .relativize(ref.getAbsoluteFile().toPath()).toString();
+        refs.add(new String[] {name, ref.isFile() ? Utils.readContentsAsString(ref) : null, value});
+    }
+
+    /** Clears the staging area once the files have landed. */
+    void clearIndex() {
+        clearIndex = true;
+    }
+
+    /** Journals the checkout, then deletes the files to delete, moves the
+     *  prepared files into the working directory and updates the refs and
+     *  the index.  Throws GitletException if a ref was moved by another
+     *  process meanwhile, and IllegalArgumentException if a file cannot be
+     *  installed; the journal is then kept, so that the next command tries
+     *  again.  Must be called holding the index lock. */
+    void install() throws IllegalArgumentException, GitletException {
+        boolean journaled = false;
+        try {
+            LockFile.write(JOURNAL, (Object) encode());
+            journaled = true;
+            apply();
+            JOURNAL.delete();
+        } finally {
+            if (!journaled || !JOURNAL.exists()) {
+                abort();
+            }
+        }
+    }
+
+    /** Finishes the checkout recorded in the journal left by a process that
+     *  was killed while installing it, if any.  Must be called holding the
+     *  index lock. */
+    static void recover() throws IllegalArgumentException {
+        if (!JOURNAL.isFile()) {
+            return;
+        }
+        try {
+            decode(Utils.readContents(JOURNAL)).apply();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException("unreadable " + JOURNAL + ": " + excp.getMessage());
+        } catch (GitletException excp) {
+            // A ref was moved since; the files are in place regardless
+        } finally {
+            JOURNAL.delete();
+            clean();
+        }
+    }
+
+    /** Installs what this writer holds, skipping what was done already, so
+     *  that a journal can be applied again. */
+    private void apply() throws IllegalArgumentException, GitletException {
+        for (String path : deletes) {
+            if (Repository.deleteWorkingFile(path)) {
+                deleted += 1;
+            }
+        }
+        try {
+            for (int i = 0; i < temps.size(); i += 1) {
+                if (!temps.get(i).exists()) {
+                    continue;
+                }
+                File dest = Utils.join(Repository.CWD, paths.get(i));
+                if (dest.isDirectory()) {
+                    throw new IllegalArgumentException("cannot overwrite directory");
+                }
+                File dir = dest.getAbsoluteFile().getParentFile();
+                if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IllegalArgumentException("cannot create directory " + dir);
+                }
+                Files.move(temps.get(i).toPath(), dest.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        for (String[] r : refs) {
+            File ref = Utils.join(Repository.GITLET_DIR, r[0]);
+            String current = ref.isFile() ? Utils.readContentsAsString(ref) : null;
+            if (!Objects.equals(current, r[2])) {
+                LockFile.compareAndSet(ref, r[1], r[2]);
+            }
+        }
+        if (clearIndex) {
+            StagingArea st;
+            try {
+                st = StagingArea.load();
+            } catch (IllegalArgumentException e) {
+                st = new StagingArea();
+            }
+            st.clearStage();
+        }
+    }
+
+    /** Removes the prepared files that have not been installed. */
+    void abort() {
+        for (File tmp : temps) {
+            tmp.delete();
+        }
+    }
+
+    /** Returns the number of prepared files. */
+    int size() {
+        return temps.size();
+    }
+
+    /** Returns the number of files install deleted. */
+    int deleted() {
+        return deleted;
+    }
+
+    /** Deletes the checkout temporary files left behind by killed
+     *  processes.  Must not be called while a journal refers to them. */
+    private static void clean() {
+        List<String> stale = Utils.plainFilenamesIn(TMP);
+        if (stale != null) {
+            for (String name : stale) {
+                if (name.startsWith(PREFIX)) {
+                    Utils.join(TMP, name).delete();
+                }
+            }
+        }
+    }
+
+    private static void makeTmp() throws IllegalArgumentException {
+        if (!TMP.isDirectory() && !TMP.mkdirs()) {
+            throw new IllegalArgumentException("cannot create directory " + TMP);
+        }
+    }
+
+    /** Creates an empty temporary file.  Files.createFile, unlike
+     *  File.createTempFile, gives it the permissions of a newly created
+     *  working file. */
+    private static File newTemp() throws IOException {
+        File tmp = Utils.join(TMP, PREFIX + ProcessHandle.current().pid() + "-" + SEQUENCE.getAndIncrement());
+        Files.createFile(tmp.toPath());
+        return tmp;
+    }
+
+    private byte[] encode() throws IllegalArgumentException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeBytes("GLCJ");
+            out.writeInt(JOURNAL_VERSION);
+            out.writeInt(temps.size());
+            for (int i = 0; i < temps.size(); i += 1) {
+                ObjectStore.writeString(out, temps.get(i).getName());
+                ObjectStore.writeString(out, paths.get(i));
+            }
+            out.writeInt(deletes.size());
+            for (String path : deletes) {
+                ObjectStore.writeString(out, path);
+            }
+            out.writeInt(refs.size());
+            for (String[] r : refs) {
+                for (String s : r) {
+                    ObjectStore.writeString(out, s);
+                }
+            }
+            out.writeBoolean(clearIndex);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static CheckoutWriter decode(byte[] journal) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        if (magic[0] != 'G' || magic[1] != 'L' || magic[2] != 'C' || magic[3] != 'J'
+                || in.readInt() != JOURNAL_VERSION) {
+            throw new IOException("not a checkout journal");
+        }
+        CheckoutWriter writer = new CheckoutWriter();
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            writer.temps.add(Utils.join(TMP, ObjectStore.readString(in)));
+            writer.paths.add(ObjectStore.readString(in));
+        }
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            writer.deletes.add(ObjectStore.readString(in));
+        }
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            writer.refs.add(new String[] {ObjectStore.readString(in), ObjectStore.readString(in),
+                ObjectStore.readString(in)});
+        }
+        writer.clearIndex = in.readBoolean();
+        return writer;
+    }
+}
@@ -1,5 +1,8 @@
 package gitlet;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -22,6 +25,7 @@ import java.util.TimeZone;
 
 
 public class Commit implements Serializable {
+    private static final long serialVersionUID = 5716931920731648767L;
 
     /** The message of this Commit. */
     private String message;
@@ -67,6 +71,8 @@ public class Commit implements Serializable {
         return sdf.format(date);
     }
 
+    private Commit() {}
+
     public Commit(String message)
     {
         this.message = message;
@@ -178,4 +184,30 @@ public class Commit implements Serializable {
         return this.SHA;
     }
 
+    /** Writes the fields of this Commit to OUT in the object store format. */
+    void write(DataOutput out) throws IOException
+    {
+        ObjectStore.writeString(out, this.message);
+        ObjectStore.writeString(out, this.branch);
+        ObjectStore.writeString(out, this.parent);
+        ObjectStore.writeString(out, this.secParent);
+        ObjectStore.writeString(out, this.timeStamp);
+        ObjectStore.writeString(out, this.tree);
+        ObjectStore.writeString(out, this.SHA);
+    }
+
+    /** Reads a Commit written by write from IN. */
+    static Commit read(DataInput in) throws IOException
+    {
+        Commit c = new Commit();
+        c.message = ObjectStore.readString(in);
+        c.branch = ObjectStore.readString(in);
+        c.parent = ObjectStore.readString(in);
+        c.secParent = ObjectStore.readString(in);
+        c.timeStamp = ObjectStore.readString(in);
+        c.tree = ObjectStore.readString(in);
+        c.SHA = ObjectStore.readString(in);
+        return c;
+    }
+
 }
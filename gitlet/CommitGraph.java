@@ -0,0 +1,484 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/** The shape of the commit history, so that ancestry can be walked without
+ *  reading commit objects.  The commit-graph file is memory-mapped and laid
+ *  out as
+ *
+ *      "GLCG"  version(4)  count(4)  stamp(8)
+ *      lookup: count x position(4), ordered by the SHA of the record
+ *      records: count x RECORD_SIZE bytes:
+ *              sha(20)  parent(4)  secParent(4)  generation(4)  time(8)
+ *
+ *  Records are in the order commits were added, so parents always come
+ *  before their children and are given by position (NONE if absent).  The
+ *  generation of a commit is one more than the largest generation of its
+ *  parents, and TIME is its timestamp in milliseconds since the epoch.
+ *
+ *  New commits are added to the commit-graph.log, a DerivedLog of further
+ *  records, which follow those of the file and are looked up in memory;
+ *  the file is written again with all of them once the log would hold
+ *  more than MAX_TAIL.  Both files are only ever replaced, by renaming a
+ *  new one over them while holding LockFile.DERIVED, so a mapped file
+ *  never changes and processes do not lose each other's commits.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class CommitGraph {
+
+    /** Position of a missing parent. */
+    static final int NONE = -1;
+
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int SHA_BYTES = 20;
+    private static final int RECORD_SIZE = SHA_BYTES + 4 + 4 + 4 + 8;
+    private static final int MAX_TAIL = 256;
+
+    /** The graph of the repository, loaded on first use. */
+    private static CommitGraph graph;
+
+    private final ByteBuffer buf;
+    /** The records of the log, which follow those of BUF. */
+    private final ByteBuffer log;
+    private final int count;
+    /** Number of records in BUF, all covered by the lookup table. */
+    private final int sorted;
+    private final long stamp;
+    private final int recordsAt;
+    /** Positions of the records of the log. */
+    private final Map<String, Integer> tail = new HashMap<>();
+
+    /** Reads the graph mapped in BUF, extended by LOG, the contents of the
+     *  log file read before mapping it. */
+    private CommitGraph(ByteBuffer buf, byte[] log) throws IOException {
+        if (buf.limit() < HEADER_SIZE || buf.get(0) != 'G' || buf.get(1) != 'L'
+                || buf.get(2) != 'C' || buf.get(3) != 'G' || buf.getInt(4) != VERSION) {
+            throw new IOException("bad commit-graph");
+        }
+        this.buf = buf;
+        this.sorted = buf.getInt(8);
+        this.stamp = buf.getLong(12);
+        this.recordsAt = HEADER_SIZE + 4 * sorted;
+        if ((long) recordsAt + (long) sorted * RECORD_SIZE > buf.limit()) {
+            throw new IOException("truncated commit-graph");
+        }
+        byte[] entries = DerivedLog.entries(log, stamp);
+        this.log = ByteBuffer.wrap(entries, 0, entries.length - entries.length % RECORD_SIZE);
+        this.count = sorted + entries.length / RECORD_SIZE;
+        for (int i = sorted; i < count; i += 1) {
+            tail.put(sha(i), i);
+        }
+    }
+
+    /** Returns the graph of the repository, first adding the commits of any
+     *  branch head, or of the commits SHAS, that it does not cover yet. */
+    static CommitGraph get(String... shas) throws IllegalArgumentException {
+        update(shas);
+        return graph;
+    }
+
+    /** Adds the commits reachable from the branch heads, or from the commits
+     *  SHAS, that are not in the graph, reading only those commits.  Called
+     *  after a command creates commits. */
+    static void update(String... shas) throws IllegalArgumentException {
+        if (graph == null) {
+            graph = read();
+        }
+        List<String> heads = branchHeads();
+        heads.addAll(Arrays.asList(shas));
+        if (graph.missing(heads).isEmpty()) {
+            return;
+        }
+        graph = LockFile.locked(LockFile.DERIVED, () -> {
+            // Another process may have added them meanwhile
+            CommitGraph current = read();
+            List<Commit> added = current.missing(heads);
+            return added.isEmpty() ? current : current.append(added);
+        });
+    }
+
+    /** Drops the loaded graph, so that it is read again on next use.
+     *  Called by Daemon when another process changed the file. */
+    static void forget() {
+        graph = null;
+    }
+
+    /** Returns the number of commits in the graph. */
+    int size() {
+        return count;
+    }
+
+    /** Returns the position of commit SHA, or NONE if it is not in the
+     *  graph. */
+    int find(String sha) {
+        if (sha == null || sha.length() != Utils.UID_LENGTH) {
+            return NONE;
+        }
+        byte[] key = Utils.sha1ToBytes(sha);
+        int lo = 0, hi = sorted - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = buf.getInt(HEADER_SIZE + 4 * mid);
+            int cmp = compareAt(pos, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return pos;
+            }
+        }
+        Integer pos = tail.get(sha);
+        return pos == null ? NONE : pos;
+    }
+
+    String sha(int pos) {
+        byte[] sha = new byte[SHA_BYTES];
+        bufOf(pos).get(record(pos), sha);
+        return Utils.sha1FromBytes(sha);
+    }
+
+    int parent(int pos) {
+        return bufOf(pos).getInt(record(pos) + SHA_BYTES);
+    }
+
+    int secParent(int pos) {
+        return bufOf(pos).getInt(record(pos) + SHA_BYTES + 4);
+    }
+
+    int generation(int pos) {
+        return bufOf(pos).getInt(record(pos) + SHA_BYTES + 8);
+    }
+
+    long time(int pos) {
+        return bufOf(pos).getLong(record(pos) + SHA_BYTES + 12);
+    }
+
+    /** Returns the buffer holding the record at POS. */
+    private ByteBuffer bufOf(int pos) {
+        return pos < sorted ? buf : log;
+    }
+
+    /** Returns where the record at POS starts in its buffer. */
+    private int record(int pos) {
+        return pos < sorted ? recordsAt + pos * RECORD_SIZE : (pos - sorted) * RECORD_SIZE;
+    }
+
+    private int compareAt(int pos, byte[] key) {
+        int at = record(pos);
+        for (int i = 0; i < SHA_BYTES; i += 1) {
+            int cmp = Integer.compare(buf.get(at + i) & 0xff, key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /* ANCESTRY */
+
+    /** Flags used while walking the graph. */
+    private static final int FROM_A = 1;
+    private static final int FROM_B = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    /** Orders positions by decreasing generation, then decreasing time. */
+    private int compareNewest(int x, int y) {
+        int cmp = Integer.compare(generation(y), generation(x));
+        if (cmp == 0) {
+            cmp = Long.compare(time(y), time(x));
+        }
+        return cmp != 0 ? cmp : Integer.compare(y, x);
+    }
+
+    /** Returns the positions of the best common ancestors of A and B, best
+     *  first: the common ancestors that are not ancestors of another common
+     *  ancestor.  Commits are visited in decreasing generation, so once a
+     *  common ancestor is found everything below it is marked stale, and the
+     *  walk stops when only stale commits are left.  Criss-cross histories
+     *  can have several best merge bases. */
+    List<Integer> mergeBases(int a, int b) {
+        List<Integer> result = new ArrayList<>();
+        if (a == b) {
+            result.add(a);
+            return result;
+        }
+        byte[] flags = new byte[count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(this::compareNewest);
+        flags[a] |= FROM_A;
+        flags[b] |= FROM_B;
+        queue.add(a);
+        queue.add(b);
+        while (hasActive(queue, flags)) {
+            int c = queue.poll();
+            int f = flags[c] & (FROM_A | FROM_B | STALE);
+            if ((f & (FROM_A | FROM_B)) == (FROM_A | FROM_B)) {
+                if ((flags[c] & RESULT) == 0) {
+                    flags[c] |= RESULT;
+                    result.add(c);
+                }
+                f |= STALE;
+            }
+            for (int p : new int[] {parent(c), secParent(c)}) {
+                if (p != NONE && (flags[p] & f) != f) {
+                    flags[p] |= f;
+                    queue.add(p);
+                }
+            }
+        }
+
+        // Drop common ancestors reached from another one
+        List<Integer> best = new ArrayList<>();
+        for (int x : result) {
+            if ((flags[x] & STALE) != 0) {
+                continue;
+            }
+            boolean redundant = false;
+            for (int y : result) {
+                if (x != y && (flags[y] & STALE) == 0 && isAncestor(x, y)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                best.add(x);
+            }
+        }
+        best.sort(this::compareNewest);
+        return best;
+    }
+
+    /** Returns true if a commit in QUEUE can still lead to a common ancestor
+     *  that has not been found yet. */
+    private static boolean hasActive(PriorityQueue<Integer> queue, byte[] flags) {
+        for (int c : queue) {
+            if ((flags[c] & STALE) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns true if A is B or an ancestor of B.  Commits with a generation
+     *  no higher than A's cannot lead to A, so the walk stops there. */
+    boolean isAncestor(int a, int b) {
+        int g = generation(a);
+        Set<Integer> seen = new HashSet<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(b);
+        while (!stack.isEmpty()) {
+            int c = stack.pop();
+            if (c == a) {
+                return true;
+            }
+            if (generation(c) <= g) {
+                continue;
+            }
+            for (int p : new int[] {parent(c), secParent(c)}) {
+                if (p != NONE && seen.add(p)) {
+                    stack.push(p);
+                }
+            }
+        }
+        return false;
+    }
+
+    /* UPDATING */
+
+    /** Returns the commits reachable from HEADS that are not in the graph,
+     *  each after its parents. */
+    private List<Commit> missing(List<String> heads) {
+        Map<String, Commit> read = new HashMap<>();
+        List<Commit> order = new ArrayList<>();
+        Deque<String> stack = new ArrayDeque<>();
+        for (String head : heads) {
+            stack.push(head);
+            while (!stack.isEmpty()) {
+                String sha = stack.peek();
+                if (find(sha) != NONE || (read.containsKey(sha) && read.get(sha) == null)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit c = read.computeIfAbsent(sha, ObjectStore::readCommit);
+                boolean ready = true;
+                for (String p : new String[] {c.getParent(), c.getSecParent()}) {
+                    if (p != null && find(p) == NONE && !read.containsKey(p)
+                            && ObjectStore.containsCommit(p)) {
+                        stack.push(p);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    order.add(c);
+                    // Mark as placed
+                    read.put(sha, null);
+                }
+            }
+        }
+        return order;
+    }
+
+    /** Returns a graph holding this graph's commits followed by ADDED,
+     *  which are in parents-first order. */
+    private CommitGraph append(List<Commit> added) {
+        int total = count + added.size();
+        byte[] records = new byte[added.size() * RECORD_SIZE];
+        ByteBuffer out = ByteBuffer.wrap(records);
+        Map<String, Integer> positions = new HashMap<>();
+        int[] generations = new int[added.size()];
+        for (int i = 0; i < added.size(); i += 1) {
+            Commit c = added.get(i);
+            int p1 = position(c.getParent(), positions);
+            int p2 = position(c.getSecParent(), positions);
+            int g = 1;
+            for (int p : new int[] {p1, p2}) {
+                if (p != NONE) {
+                    g = Math.max(g, 1 + (p < count ? generation(p) : generations[p - count]));
+                }
+            }
+            generations[i] = g;
+            positions.put(c.getSHA(), count + i);
+            out.put(Utils.sha1ToBytes(c.getSHA()));
+            out.putInt(p1);
+            out.putInt(p2);
+            out.putInt(g);
+            out.putLong(parseTime(c.getTimeStamp()));
+        }
+        try {
+            if (count == 0) {
+                // Positions of a graph built from scratch may differ
+                Bitmaps.clear();
+                rewrite(records, total);
+            } else if (total - sorted > MAX_TAIL) {
+                rewrite(records, total);
+            } else {
+                byte[] logged = Arrays.copyOf(log.array(), log.limit());
+                DerivedLog.write(Repository.COMMIT_GRAPH_LOG, stamp, logged, records);
+            }
+            return read();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private int position(String sha, Map<String, Integer> positions) {
+        if (sha == null) {
+            return NONE;
+        }
+        Integer pos = positions.get(sha);
+        return pos != null ? pos : find(sha);
+    }
+
+    /** Writes a new graph file holding this graph's records followed by
+     *  RECORDS, with a lookup table covering all TOTAL of them, and drops
+     *  the log. */
+    private void rewrite(byte[] records, int total) throws IOException {
+        byte[] all = new byte[total * RECORD_SIZE];
+        buf.get(recordsAt, all, 0, sorted * RECORD_SIZE);
+        log.get(0, all, sorted * RECORD_SIZE, log.limit());
+        System.arraycopy(records, 0, all, count * RECORD_SIZE, records.length);
+
+        List<Integer> lookup = new ArrayList<>(total);
+        for (int i = 0; i < total; i += 1) {
+            lookup.add(i);
+        }
+        lookup.sort((a, b) -> compareRecords(all, a, b));
+
+        File tmp = File.createTempFile("graph", ".tmp", Repository.GITLET_DIR);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+            out.writeBytes("GLCG");
+            out.writeInt(VERSION);
+            out.writeInt(total);
+            out.writeLong(DerivedLog.newStamp());
+            for (int pos : lookup) {
+                out.writeInt(pos);
+            }
+            out.write(all);
+        }
+        Files.move(tmp.toPath(), Repository.COMMIT_GRAPH.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // Ignored from now on, as it extends the old file
+        Repository.COMMIT_GRAPH_LOG.delete();
+    }
+
+    private static int compareRecords(byte[] all, int a, int b) {
+        for (int i = 0; i < SHA_BYTES; i += 1) {
+            int cmp = Integer.compare(all[a * RECORD_SIZE + i] & 0xff, all[b * RECORD_SIZE + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /* LOADING */
+
+    /** Maps the commit-graph file, or returns an empty graph if there is
+     *  none or it cannot be used, in which case it is rebuilt by update. */
+    private static CommitGraph read() throws IllegalArgumentException {
+        if (Repository.COMMIT_GRAPH.isFile()) {
+            byte[] log = DerivedLog.read(Repository.COMMIT_GRAPH_LOG);
+            try (FileChannel ch = FileChannel.open(Repository.COMMIT_GRAPH.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                return new CommitGraph(map, log);
+            } catch (IOException excp) {
+                // Fall through and start over
+            }
+        }
+        ByteBuffer empty = ByteBuffer.allocate(HEADER_SIZE);
+        empty.put(new byte[] {'G', 'L', 'C', 'G'}).putInt(VERSION).putInt(0).putLong(0);
+        try {
+            return new CommitGraph(empty, null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the commits the branches point to. */
+    static List<String> branchHeads() {
+        List<String> heads = new ArrayList<>();
+        List<String> branches = Utils.plainFilenamesIn(Repository.BRANCH);
+        if (branches != null) {
+            for (String b : branches) {
+                heads.add(Utils.readContentsAsString(Utils.join(Repository.BRANCH, b)));
+            }
+        }
+        return heads;
+    }
+
+    /** Returns the commit timestamp STAMP in milliseconds since the epoch,
+     *  or 0 if it cannot be parsed. */
+    static long parseTime(String stamp) {
+        try {
+            return new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z").parse(stamp).getTime();
+        } catch (ParseException | NullPointerException excp) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/** A sorted index of the ids of all stored commits, so that abbreviated
+ *  commit ids are expanded, and the shortest unique abbreviation of an id
+ *  is found, without listing the commits.
+ *
+ *  The commit-index file is memory-mapped and laid out like a pack index
+ *
+ *      "GLCX"  version(4)  count(4)  stamp(8)
+ *      fanout: 256 x 4 bytes, the number of ids whose first byte is at
+ *              most i
+ *      ids: count x sha(20), sorted
+ *
+ *  so the ids with a given prefix are found by a binary search within the
+ *  fanout bucket of their first byte.  ObjectStore adds every commit it
+ *  writes to the commit-index.log, a DerivedLog of sha(20) entries, and
+ *  the table is rebuilt once the log holds MAX_LOG ids.  When the file is
+ *  missing, it is built from a listing of the stored commits.  Both files
+ *  are only ever replaced, by renaming a new one over them while holding
+ *  LockFile.DERIVED, so a mapped file never changes and concurrent
+ *  processes do not lose each other's ids.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class CommitIndex {
+
+    /** Shortest abbreviation accepted for a commit id. */
+    static final int MIN_ABBREV = 4;
+
+    private static final int VERSION = 2;
+    private static final int FANOUT_OFFSET = 20;
+    private static final int IDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+    private static final int SHA_BYTES = 20;
+    private static final int MAX_LOG = 256;
+
+    /** The mapped index, loaded on first use. */
+    private static CommitIndex index;
+
+    private final ByteBuffer buf;
+    private final int count;
+    private final long stamp;
+    /** The entries of the log, as stored. */
+    private final byte[] logged;
+    /** Ids read from the log. */
+    private final TreeSet<String> log = new TreeSet<>();
+
+    /** Reads the index mapped in BUF, extended by LOG, the contents of the
+     *  log file read before mapping it. */
+    private CommitIndex(ByteBuffer buf, byte[] log) throws IOException {
+        if (buf.limit() < IDS_OFFSET || buf.get(0) != 'G' || buf.get(1) != 'L'
+                || buf.get(2) != 'C' || buf.get(3) != 'X' || buf.getInt(4) != VERSION) {
+            throw new IOException("bad commit index");
+        }
+        this.buf = buf;
+        this.count = buf.getInt(8);
+        this.stamp = buf.getLong(12);
+        if (IDS_OFFSET + (long) count * SHA_BYTES > buf.limit()) {
+            throw new IOException("truncated commit index");
+        }
+        this.logged = DerivedLog.entries(log, stamp);
+        for (int at = 0; at + SHA_BYTES <= logged.length; at += SHA_BYTES) {
+            this.log.add(Utils.sha1FromBytes(Arrays.copyOfRange(logged, at, at + SHA_BYTES)));
+        }
+    }
+
+    /* QUERIES */
+
+    /** Returns the ids of the stored commits that start with PREFIX, in
+     *  lexicographic order.  PREFIX must have at least MIN_ABBREV
+     *  hexadecimal digits; otherwise nothing matches. */
+    static List<String> expand(String prefix) throws IllegalArgumentException {
+        List<String> result = new ArrayList<>();
+        if (prefix.length() < MIN_ABBREV || prefix.length() > Utils.UID_LENGTH
+                || !prefix.matches("[0-9a-f]+")) {
+            return result;
+        }
+        CommitIndex idx = open();
+        for (int i = idx.lowerBound(prefix); i < idx.count; i += 1) {
+            String sha = idx.idAt(i);
+            if (!sha.startsWith(prefix)) {
+                break;
+            }
+            result.add(sha);
+        }
+        for (String sha : idx.log.tailSet(prefix)) {
+            if (!sha.startsWith(prefix)) {
+                break;
+            }
+            if (!result.contains(sha)) {
+                result.add(sha);
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    /** Returns the shortest prefix of commit id SHA, of at least MIN
+     *  digits, that no other stored commit id starts with. */
+    static String abbreviate(String sha, int min) throws IllegalArgumentException {
+        CommitIndex idx = open();
+        int len = min;
+        // Only the ids next to SHA in sorted order can share a longer prefix
+        int i = idx.lowerBound(sha);
+        String[] neighbours = {
+            i > 0 ? idx.idAt(i - 1) : null,
+            i < idx.count ? idx.idAt(i) : null,
+            i + 1 < idx.count ? idx.idAt(i + 1) : null,
+            idx.log.lower(sha), idx.log.higher(sha),
+        };
+        for (String other : neighbours) {
+            if (other != null && !other.equals(sha)) {
+                len = Math.max(len, commonPrefix(sha, other) + 1);
+            }
+        }
+        return sha.substring(0, Math.min(len, sha.length()));
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = 0;
+        while (n < a.length() && n < b.length() && a.charAt(n) == b.charAt(n)) {
+            n += 1;
+        }
+        return n;
+    }
+
+    /** Returns the position of the first id in the table that is not less
+     *  than the hexadecimal PREFIX. */
+    private int lowerBound(String prefix) {
+        int bucket = Integer.parseInt(prefix.substring(0, 2), 16);
+        int lo = bucket == 0 ? 0 : buf.getInt(FANOUT_OFFSET + (bucket - 1) * 4);
+        int hi = buf.getInt(FANOUT_OFFSET + bucket * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idAt(mid).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private String idAt(int i) {
+        return Utils.sha1FromBytes(bytes(IDS_OFFSET + i * SHA_BYTES));
+    }
+
+    private byte[] bytes(int at) {
+        byte[] result = new byte[SHA_BYTES];
+        buf.get(at, result);
+        return result;
+    }
+
+    /** Drops the mapped index, so that it is read again on next use.
+     *  Called by Daemon when another process changed the file. */
+    static void forget() {
+        index = null;
+    }
+
+    /* UPDATING */
+
+    /** Records the id SHA of a newly stored commit. */
+    static void add(String sha) throws IllegalArgumentException {
+        index = null;
+        LockFile.locked(LockFile.DERIVED, () -> {
+            // Built from the stored commits, which include SHA, if missing
+            CommitIndex idx = open();
+            if (idx.log.contains(sha) || idx.inTable(sha)) {
+                return null;
+            }
+            try {
+                if (idx.log.size() >= MAX_LOG) {
+                    TreeSet<String> all = idx.ids();
+                    all.add(sha);
+                    write(all);
+                } else {
+                    DerivedLog.write(Repository.COMMIT_INDEX_LOG, idx.stamp, idx.logged, Utils.sha1ToBytes(sha));
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return null;
+        });
+        index = null;
+    }
+
+    /** Returns true if the table holds the full id SHA. */
+    private boolean inTable(String sha) {
+        int i = lowerBound(sha);
+        return i < count && idAt(i).equals(sha);
+    }
+
+    /** Returns every id of this index, table and log. */
+    private TreeSet<String> ids() {
+        TreeSet<String> all = new TreeSet<>(log);
+        for (int i = 0; i < count; i += 1) {
+            all.add(idAt(i));
+        }
+        return all;
+    }
+
+    /* FILE */
+
+    /** Maps the index, first building it from the stored commits if there
+     *  is none or it cannot be used. */
+    private static CommitIndex open() throws IllegalArgumentException {
+        if (index == null) {
+            index = mapIfUsable();
+        }
+        if (index == null) {
+            index = LockFile.locked(LockFile.DERIVED, () -> {
+                // Another process may have built it meanwhile
+                CommitIndex built = mapIfUsable();
+                if (built != null) {
+                    return built;
+                }
+                try {
+                    write(new TreeSet<>(ObjectStore.listCommits()));
+                    return map();
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            });
+        }
+        return index;
+    }
+
+    /** Maps the index, or returns null if there is none or it cannot be
+     *  used. */
+    private static CommitIndex mapIfUsable() {
+        if (Repository.COMMIT_INDEX.isFile()) {
+            try {
+                return map();
+            } catch (IOException excp) {
+                // Unusable: built again by the caller
+            }
+        }
+        return null;
+    }
+
+    private static CommitIndex map() throws IOException {
+        byte[] log = DerivedLog.read(Repository.COMMIT_INDEX_LOG);
+        try (FileChannel ch = FileChannel.open(Repository.COMMIT_INDEX.toPath(), StandardOpenOption.READ)) {
+            return new CommitIndex(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), log);
+        }
+    }
+
+    /** Writes a new index file holding the sorted IDS in its table, and
+     *  drops the log, whose ids IDS include. */
+    private static void write(TreeSet<String> ids) throws IOException {
+        int[] fanout = new int[256];
+        for (String sha : ids) {
+            fanout[Integer.parseInt(sha.substring(0, 2), 16)] += 1;
+        }
+        File tmp = File.createTempFile("commit-index", ".tmp", Repository.GITLET_DIR);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+            out.writeBytes("GLCX");
+            out.writeInt(VERSION);
+            out.writeInt(ids.size());
+            out.writeLong(DerivedLog.newStamp());
+            int total = 0;
+            for (int i = 0; i < 256; i += 1) {
+                total += fanout[i];
+                out.writeInt(total);
+            }
+            for (String sha : ids) {
+                out.write(Utils.sha1ToBytes(sha));
+            }
+        }
+        Files.move(tmp.toPath(), Repository.COMMIT_INDEX.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // Ignored from now on, as it extends the old file
+        Repository.COMMIT_INDEX_LOG.delete();
+    }
+}
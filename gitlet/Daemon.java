@@ -0,0 +1,323 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/** Serves gitlet commands from one long-lived process, so that scripts
+ *  running many commands pay for JVM startup, class loading and cold object
+ *  reads once.  Decoded commits and trees stay cached in the daemon; the
+ *  files that other processes may change are read again when they change.
+ *
+ *  "gitlet daemon" listens on a loopback TCP port and records the port,
+ *  with a random token, in .gitlet/daemon, which only its owner can read.
+ *  (Unix-domain sockets need Java 16, and gitlet builds for Java 14.)  Main
+ *  first offers each command to the daemon of the repository in the working
+ *  directory, and runs it in-process when there is none or it refuses.
+ *
+ *  A request is
+ *
+ *      token(UTF)  working directory(UTF)  count(4)  count x argument(UTF)
+ *
+ *  and the reply is ACCEPTED or REFUSED, followed for an accepted request
+ *  by the output of the command as chunks
+ *
+ *      stream(1)  length(4)  bytes
+ *
+ *  where STREAM is OUT or ERR, and finally END and the exit status(4).
+ *  Commands are served one at a time, each exactly as Main would run it.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class Daemon {
+
+    /** The file naming the port and token of the running daemon. */
+    static final File DAEMON = Utils.join(Repository.GITLET_DIR, "daemon");
+
+    private static final int ACCEPTED = 1;
+    private static final int REFUSED = 0;
+    private static final int END = 0;
+    private static final int OUT = 1;
+    private static final int ERR = 2;
+
+    /** Milliseconds a client waits for the daemon to accept. */
+    private static final int CONNECT_TIMEOUT = 500;
+    /** Milliseconds the daemon waits for a request to arrive. */
+    private static final int REQUEST_TIMEOUT = 5000;
+
+    /** The files whose contents are kept in memory between commands, with
+     *  the way to drop them when another process changes the file.  Set up
+     *  by serve only, to keep the client light. */
+    private static Map<File, Runnable> cached;
+
+    /* SERVER */
+
+    /** Serves commands until stopped by "gitlet daemon --stop". */
+    static void serve() {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            Utils.message("Not in an initialized Gitlet directory.");
+            return;
+        }
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        String token = Utils.sha1((Object) secret);
+
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            writeFile(server.getLocalPort() + " " + token);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> removeFile(token)));
+            Utils.message("Serving gitlet commands on port %d.", server.getLocalPort());
+
+            cached = new LinkedHashMap<>();
+            cached.put(Repository.COMMIT_GRAPH, CommitGraph::forget);
+            cached.put(Repository.COMMIT_GRAPH_LOG, CommitGraph::forget);
+            cached.put(Repository.BITMAPS, Bitmaps::forget);
+            cached.put(Repository.COMMIT_INDEX, CommitIndex::forget);
+            cached.put(Repository.COMMIT_INDEX_LOG, CommitIndex::forget);
+            cached.put(Repository.PACKS, Pack::forget);
+            Map<File, Object> stamps = new HashMap<>();
+            boolean running = true;
+            while (running) {
+                try (Socket s = server.accept()) {
+                    running = handle(s, token, stamps);
+                } catch (IOException excp) {
+                    // The client went away; serve the next one
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            removeFile(token);
+        }
+    }
+
+    /** Serves one request on S.  Returns false if it asked the daemon to
+     *  stop. */
+    private static boolean handle(Socket s, String token, Map<File, Object> stamps) throws IOException {
+        s.setSoTimeout(REQUEST_TIMEOUT);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        if (!in.readUTF().equals(token)) {
+            return true;
+        }
+        String cwd = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = in.readUTF();
+        }
+        s.setSoTimeout(0);
+        if (!cwd.equals(Repository.CWD.getAbsolutePath())) {
+            out.writeByte(REFUSED);
+            out.flush();
+            return true;
+        }
+        out.writeByte(ACCEPTED);
+        if (args.length == 2 && args[0].equals("daemon") && args[1].equals("--stop")) {
+            out.writeByte(END);
+            out.writeInt(0);
+            out.flush();
+            return false;
+        }
+
+        refresh(stamps);
+        Repository.resetState();
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream cmdOut = new PrintStream(new ChunkStream(out, OUT), true, StandardCharsets.UTF_8);
+        PrintStream cmdErr = new PrintStream(new ChunkStream(out, ERR), true, StandardCharsets.UTF_8);
+        int status;
+        System.setOut(cmdOut);
+        System.setErr(cmdErr);
+        try {
+            status = Main.execute(args);
+        } catch (RuntimeException | Error excp) {
+            // As an uncaught exception would end a gitlet process
+            System.err.print("Exception in thread \"main\" ");
+            excp.printStackTrace();
+            status = 1;
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            cmdOut.flush();
+            cmdErr.flush();
+        }
+        out.writeByte(END);
+        out.writeInt(status);
+        out.flush();
+        return true;
+    }
+
+    /** Drops the cached contents of every file in cached that changed since
+     *  the last command, as recorded in STAMPS. */
+    private static void refresh(Map<File, Object> stamps) {
+        for (Map.Entry<File, Runnable> e : cached.entrySet()) {
+            Object stamp = stamp(e.getKey());
+            if (!Objects.equals(stamp, stamps.get(e.getKey()))) {
+                e.getValue().run();
+                stamps.put(e.getKey(), stamp);
+            }
+        }
+    }
+
+    /** Returns the identity, size and modification time of FILE, which
+     *  change whenever it is written or replaced, or null if it is
+     *  missing. */
+    private static Object stamp(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return Arrays.asList(attrs.fileKey(), attrs.size(), attrs.lastModifiedTime());
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Replaces .gitlet/daemon by INFO.  Files.createTempFile makes a file
+     *  only its owner can read, which keeps the token from other users. */
+    private static void writeFile(String info) throws IOException {
+        File dir = CheckoutWriter.TMP;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        Path tmp = Files.createTempFile(dir.toPath(), "daemon-", ".tmp");
+        try {
+            Files.write(tmp, info.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, DAEMON.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void removeFile(String token) {
+        try {
+            if (DAEMON.isFile() && Utils.readContentsAsString(DAEMON).endsWith(" " + token)) {
+                DAEMON.delete();
+            }
+        } catch (IllegalArgumentException excp) {
+            // Already gone
+        }
+    }
+
+    /** An OutputStream sending what is written to it as chunks of STREAM. */
+    private static class ChunkStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int stream;
+
+        ChunkStream(DataOutputStream out, int stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                out.writeByte(stream);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    /* CLIENT */
+
+    /** Runs ARGS in the daemon of the repository in the working directory,
+     *  copying its output, and returns the exit status, or returns null if
+     *  no daemon took the command. */
+    static Integer forward(String[] args) {
+        if (!DAEMON.isFile()) {
+            return null;
+        }
+        List<String> info;
+        int port;
+        try {
+            info = Arrays.asList(Utils.readContentsAsString(DAEMON).trim().split(" "));
+            port = Integer.parseInt(info.get(0));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException excp) {
+            return null;
+        }
+
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            out.writeUTF(info.size() > 1 ? info.get(1) : "");
+            out.writeUTF(Repository.CWD.getAbsolutePath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            if (in.read() != ACCEPTED) {
+                return null;
+            }
+            return copyReply(in);
+        } catch (IOException excp) {
+            // No daemon answers; the command has not run
+            return null;
+        }
+    }
+
+    /** Copies the output chunks of an accepted request from IN and returns
+     *  the exit status.  The command may already have changed the
+     *  repository, so a lost connection is reported instead of running the
+     *  command again. */
+    private static int copyReply(DataInputStream in) {
+        try {
+            while (true) {
+                int stream = in.readUnsignedByte();
+                if (stream == END) {
+                    System.out.flush();
+                    return in.readInt();
+                }
+                byte[] chunk = new byte[in.readInt()];
+                in.readFully(chunk);
+                PrintStream dest = stream == ERR ? System.err : System.out;
+                dest.write(chunk, 0, chunk.length);
+                dest.flush();
+            }
+        } catch (IOException excp) {
+            System.out.flush();
+            System.err.println("Lost the connection to the gitlet daemon.");
+            return 1;
+        }
+    }
+
+    /** Asks the daemon of the repository in the working directory to
+     *  stop. */
+    static void stop() {
+        Integer status = forward(new String[] {"daemon", "--stop"});
+        if (status == null) {
+            Utils.message("No gitlet daemon is running.");
+        }
+    }
+}
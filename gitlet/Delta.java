@@ -0,0 +1,170 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/** Copy/insert deltas between two versions of a blob.
+ *
+ *  A delta starts with the sizes of the base and of the result, followed
+ *  by instructions that either copy a range of the base or insert literal
+ *  bytes:
+ *
+ *      COPY   offset length
+ *      INSERT length bytes...
+ *
+ *  where all numbers are unsigned variable-length integers (seven bits per
+ *  byte, high bit set on every byte but the last).
+ *
+ *  @author Abdelrahman Ezz
+ */
+class Delta {
+
+    /** Size of the blocks of the base that are indexed for matching. */
+    static final int BLOCK = 16;
+
+    private static final int COPY = 1;
+    private static final int INSERT = 2;
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        // Index the start of every block of the base
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+
+        int pending = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            Integer at = blocks.get(hash(target, i));
+            if (at == null || !matches(base, at, target, i)) {
+                i += 1;
+                continue;
+            }
+            // Grow the match backwards over pending literals and forwards
+            int bs = at, ts = i;
+            while (bs > 0 && ts > pending && base[bs - 1] == target[ts - 1]) {
+                bs -= 1;
+                ts -= 1;
+            }
+            int be = at + BLOCK, te = i + BLOCK;
+            while (be < base.length && te < target.length && base[be] == target[te]) {
+                be += 1;
+                te += 1;
+            }
+            insert(out, target, pending, ts);
+            out.write(COPY);
+            writeVarint(out, bs);
+            writeVarint(out, te - ts);
+            i = te;
+            pending = te;
+        }
+        insert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Returns the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) throws IllegalArgumentException {
+        int[] pos = {0};
+        if (readVarint(delta, pos) != base.length) {
+            throw new IllegalArgumentException("delta does not match its base");
+        }
+        byte[] result = new byte[readVarint(delta, pos)];
+        int r = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, pos);
+                int length = readVarint(delta, pos);
+                System.arraycopy(base, offset, result, r, length);
+                r += length;
+            } else if (op == INSERT) {
+                int length = readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], result, r, length);
+                pos[0] += length;
+                r += length;
+            } else {
+                throw new IllegalArgumentException("corrupt delta");
+            }
+        }
+        if (r != result.length) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+        return result;
+    }
+
+    /** Returns the size of the result of the delta read from IN, without
+     *  reading more than its first two numbers. */
+    static int resultSize(InputStream in) throws IOException {
+        readVarint(in);
+        return readVarint(in);
+    }
+
+    /** Writes the literal bytes TARGET[FROM..TO) as an INSERT. */
+    private static void insert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int k = start; k < start + BLOCK; k += 1) {
+            h = 31 * h + data[k];
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] base, int b, byte[] target, int t) {
+        for (int k = 0; k < BLOCK; k += 1) {
+            if (base[b + k] != target[t + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("truncated delta");
+            }
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,74 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** The entries added to a file derived from the commits (the commit graph
+ *  and the commit and message indexes) since that file was last written
+ *  in full.  The derived file stays mapped and unchanged, and a commit is
+ *  added by rewriting only its small log, which the derived file is
+ *  rebuilt from once it grows past a bound, so adding a commit costs a
+ *  copy of the log rather than of the whole file.  A log is laid out as
+ *
+ *      "GLDL"  stamp(8)  entries, up to the end of the file
+ *
+ *  where STAMP is the stamp of the derived file it extends.  A derived
+ *  file gets a new random stamp each time it is written in full, so a log
+ *  left behind by a process killed between renaming a rebuilt file into
+ *  place and removing the log is ignored rather than applied twice.  Like
+ *  the derived files, a log is only replaced by renaming a new one over
+ *  it, holding LockFile.DERIVED.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class DerivedLog {
+
+    private static final int HEADER_SIZE = 12;
+    private static final byte[] NO_ENTRIES = new byte[0];
+
+    /** Returns a stamp for a derived file being written in full. */
+    static long newStamp() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    /** Returns the contents of the log FILE, or null if there is none.  A
+     *  log must be read before the file it extends is mapped: read after,
+     *  it may already extend a newer one, whose entries the mapped file
+     *  lacks. */
+    static byte[] read(File file) throws IllegalArgumentException {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the entries of LOG, as returned by read, if it extends the
+     *  derived file stamped STAMP, and no entries otherwise. */
+    static byte[] entries(byte[] log, long stamp) {
+        if (log == null || log.length < HEADER_SIZE || log[0] != 'G' || log[1] != 'L'
+                || log[2] != 'D' || log[3] != 'L' || ByteBuffer.wrap(log).getLong(4) != stamp) {
+            return NO_ENTRIES;
+        }
+        byte[] result = new byte[log.length - HEADER_SIZE];
+        System.arraycopy(log, HEADER_SIZE, result, 0, result.length);
+        return result;
+    }
+
+    /** Replaces the log FILE by one extending the derived file stamped
+     *  STAMP and holding ENTRIES, concatenated.  Must be called holding
+     *  LockFile.DERIVED. */
+    static void write(File file, long stamp, byte[]... entries) throws IllegalArgumentException {
+        Object[] contents = new Object[entries.length + 1];
+        contents[0] = ByteBuffer.allocate(HEADER_SIZE).put(new byte[] {'G', 'L', 'D', 'L'})
+                .putLong(stamp).array();
+        System.arraycopy(entries, 0, contents, 1, entries.length);
+        LockFile.write(file, contents);
+    }
+}
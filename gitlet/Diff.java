@@ -0,0 +1,241 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Line diffs between versions of a file.
+ *
+ *  The contents are split into lines that stay slices of their buffers
+ *  (see Blob.map), so no line is copied onto the heap; each distinct line
+ *  gets an integer id, and the id sequences are compared by Myers' O(ND)
+ *  algorithm in its linear-space form: the middle snake of the edit graph
+ *  is found by searching from both ends at once, and the two halves are
+ *  diffed recursively.  A search that needs more than MAX_COST edits gives
+ *  up on a minimal result and reports the remaining lines as one change, so
+ *  that the time stays bounded on files that differ everywhere.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class Diff {
+
+    /** Most edits searched for in one middle snake. */
+    private static final int MAX_COST = 4096;
+
+    /** The lines of a file.  Line I spans the bytes from starts[I] to
+     *  starts[I + 1] of the buffer, including its newline, if any. */
+    static class Lines {
+        private final ByteBuffer buf;
+        private final int[] starts;
+        /** The id of each line; equal lines have equal ids. */
+        private final int[] ids;
+
+        private Lines(ByteBuffer buf, int[] starts, int[] ids) {
+            this.buf = buf;
+            this.starts = starts;
+            this.ids = ids;
+        }
+
+        /** Returns the number of lines. */
+        int size() {
+            return ids.length;
+        }
+
+        /** Returns the bytes of lines FROM up to TO as a slice of the
+         *  buffer. */
+        ByteBuffer slice(int from, int to) {
+            return buf.slice(starts[from], starts[to] - starts[from]);
+        }
+
+        /** Returns true if lines FROM up to TO end with a newline, or are
+         *  none. */
+        boolean endsWithNewline(int from, int to) {
+            return from == to || buf.get(starts[to] - 1) == '\n';
+        }
+
+        /** Returns true if lines AFROM up to ATO are the lines BFROM up to
+         *  BTO of B, which must come from the same call to split. */
+        boolean sameLines(int aFrom, int aTo, Lines b, int bFrom, int bTo) {
+            return Arrays.equals(ids, aFrom, aTo, b.ids, bFrom, bTo);
+        }
+    }
+
+    /** A change replacing lines aStart up to aEnd of the old version by
+     *  lines bStart up to bEnd of the new one. */
+    static class Hunk {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** Returns the lines of each of CONTENTS, numbered so that equal lines
+     *  of any of them have equal ids. */
+    static Lines[] split(ByteBuffer... contents) {
+        Map<ByteBuffer, Integer> idOf = new HashMap<>();
+        Lines[] result = new Lines[contents.length];
+        for (int c = 0; c < contents.length; c += 1) {
+            ByteBuffer buf = contents[c];
+            int count = 0;
+            for (int i = 0; i < buf.limit(); i += 1) {
+                if (buf.get(i) == '\n') {
+                    count += 1;
+                }
+            }
+            if (buf.limit() > 0 && buf.get(buf.limit() - 1) != '\n') {
+                count += 1;
+            }
+            int[] starts = new int[count + 1];
+            int[] ids = new int[count];
+            int line = 0;
+            for (int i = 0; i < buf.limit(); i += 1) {
+                if (buf.get(i) == '\n' || i == buf.limit() - 1) {
+                    starts[line + 1] = i + 1;
+                    ByteBuffer text = buf.slice(starts[line], i + 1 - starts[line]);
+                    Integer id = idOf.putIfAbsent(text, idOf.size());
+                    ids[line] = id == null ? idOf.size() - 1 : id;
+                    line += 1;
+                }
+            }
+            result[c] = new Lines(buf, starts, ids);
+        }
+        return result;
+    }
+
+    /** Returns the changes turning A into B, in order. */
+    static List<Hunk> diff(Lines a, Lines b) {
+        Diff d = new Diff(a.ids, b.ids);
+        d.compare(0, a.ids.length, 0, b.ids.length);
+        return d.hunks;
+    }
+
+    private final int[] a;
+    private final int[] b;
+    private final List<Hunk> hunks = new ArrayList<>();
+
+    private Diff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+    }
+
+    /** Adds the changes turning a[aLo..aHi) into b[bLo..bHi). */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            change(aLo, aHi, bLo, bHi);
+            return;
+        }
+        int[] split = middleSnake(aLo, aHi, bLo, bHi);
+        if (split == null) {
+            change(aLo, aHi, bLo, bHi);
+            return;
+        }
+        compare(aLo, split[0], bLo, split[1]);
+        compare(split[0], aHi, split[1], bHi);
+    }
+
+    /** Records the change of a[aLo..aHi) into b[bLo..bHi), joining it to
+     *  the previous change if they touch. */
+    private void change(int aLo, int aHi, int bLo, int bHi) {
+        if (aLo == aHi && bLo == bHi) {
+            return;
+        }
+        if (!hunks.isEmpty()) {
+            Hunk last = hunks.get(hunks.size() - 1);
+            if (last.aEnd == aLo && last.bEnd == bLo) {
+                hunks.set(hunks.size() - 1, new Hunk(last.aStart, aHi, last.bStart, bHi));
+                return;
+            }
+        }
+        hunks.add(new Hunk(aLo, aHi, bLo, bHi));
+    }
+
+    /** Returns a point {x, y} on a shortest edit path from (aLo, bLo) to
+     *  (aHi, bHi), found where the paths searched forward from the start
+     *  and backward from the end meet, or null if more than MAX_COST edits
+     *  would be needed.  Both ranges are non-empty and differ in their
+     *  first and last lines. */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo, m = bHi - bLo;
+        int maxD = Math.min((n + m + 1) / 2, MAX_COST);
+        int offset = maxD + 1;
+        // forward[k] and backward[k]: furthest x reached on diagonal k,
+        // backward ones counted from the end
+        int[] forward = new int[2 * offset + 1];
+        int[] backward = new int[2 * offset + 1];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        // Diagonals that ran off the edit graph are not searched again
+        int kStart1 = 0, kEnd1 = 0, kStart2 = 0, kEnd2 = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            for (int k = -d + kStart1; k <= d - kEnd1; k += 2) {
+                int i = offset + k;
+                int x = k == -d || (k != d && forward[i - 1] < forward[i + 1])
+                        ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[i] = x;
+                if (x > n) {
+                    kEnd1 += 2;
+                } else if (y > m) {
+                    kStart1 += 2;
+                } else if (odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < backward.length && backward[j] != -1 && x >= n - backward[j]) {
+                        return new int[] {aLo + x, bLo + y};
+                    }
+                }
+            }
+            for (int k = -d + kStart2; k <= d - kEnd2; k += 2) {
+                int i = offset + k;
+                int x = k == -d || (k != d && backward[i - 1] < backward[i + 1])
+                        ? backward[i + 1] : backward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[i] = x;
+                if (x > n) {
+                    kEnd2 += 2;
+                } else if (y > m) {
+                    kStart2 += 2;
+                } else if (!odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < forward.length && forward[j] != -1) {
+                        int fx = forward[j];
+                        int fy = offset + fx - j;
+                        if (fx >= n - x) {
+                            return new int[] {aLo + fx, bLo + fy};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
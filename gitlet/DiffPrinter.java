@@ -0,0 +1,159 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** Prints the differences between versions of files in the unified format
+ *  of diff -u, through a single buffered stream:
+ *
+ *      diff --git a/OLDPATH b/PATH
+ *      similarity index SCORE%   (renamed or copied files only)
+ *      rename from OLDPATH       (or copy from)
+ *      rename to PATH            (or copy to)
+ *      index OLD..NEW
+ *      --- a/PATH          (or /dev/null for a new file)
+ *      +++ b/PATH          (or /dev/null for a deleted file)
+ *      @@ -START,COUNT +START,COUNT @@
+ *       a line in both versions
+ *      -a line of the old version
+ *      +a line of the new version
+ *
+ *  with CONTEXT unchanged lines around each change.  Lines are found by
+ *  Diff and written straight from the buffers they are slices of.  Files
+ *  holding a zero byte near their start are reported as binary.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class DiffPrinter {
+
+    /** Unchanged lines shown around each change. */
+    private static final int CONTEXT = 3;
+    /** Bytes searched for a zero byte to tell binary files. */
+    private static final int BINARY_PROBE = 8000;
+    private static final int ABBREV = 7;
+
+    private final OutputStream out = new BufferedOutputStream(System.out, Blob.CHUNK_SIZE);
+
+    /** Prints the differences between file OLDPATH at OLDHASH with contents
+     *  OLD and file NEWPATH at NEWHASH with contents NEW; a null hash and
+     *  contents stand for a missing file.  PAIR, unless null, tells that
+     *  NEWPATH was renamed or copied from OLDPATH; a file renamed or copied
+     *  unchanged is shown by its header alone. */
+    void print(String oldPath, String newPath, Renames.Pair pair,
+               String oldHash, ByteBuffer old, String newHash, ByteBuffer neu) throws IOException {
+        text("diff --git a/" + oldPath + " b/" + newPath + "\n");
+        if (pair != null) {
+            String kind = pair.copy ? "copy" : "rename";
+            text("similarity index " + pair.score + "%\n");
+            text(kind + " from " + oldPath + "\n" + kind + " to " + newPath + "\n");
+            if (oldHash.equals(newHash)) {
+                return;
+            }
+        } else if (oldHash == null) {
+            text("new file\n");
+        } else if (newHash == null) {
+            text("deleted file\n");
+        }
+        text("index " + abbreviate(oldHash) + ".." + abbreviate(newHash) + "\n");
+        ByteBuffer a = old == null ? ByteBuffer.allocate(0) : old;
+        ByteBuffer b = neu == null ? ByteBuffer.allocate(0) : neu;
+        if (isBinary(a) || isBinary(b)) {
+            text("Binary files " + (old == null ? "/dev/null" : "a/" + oldPath) + " and "
+                    + (neu == null ? "/dev/null" : "b/" + newPath) + " differ\n");
+            return;
+        }
+        text("--- " + (old == null ? "/dev/null" : "a/" + oldPath) + "\n");
+        text("+++ " + (neu == null ? "/dev/null" : "b/" + newPath) + "\n");
+
+        Diff.Lines[] lines = Diff.split(a, b);
+        List<Diff.Hunk> hunks = Diff.diff(lines[0], lines[1]);
+        for (int first = 0; first < hunks.size(); ) {
+            // Changes closer than twice the context share a hunk
+            int last = first;
+            while (last + 1 < hunks.size()
+                    && hunks.get(last + 1).aStart - hunks.get(last).aEnd <= 2 * CONTEXT) {
+                last += 1;
+            }
+            printHunk(lines[0], lines[1], hunks.subList(first, last + 1));
+            first = last + 1;
+        }
+    }
+
+    private void printHunk(Diff.Lines a, Diff.Lines b, List<Diff.Hunk> changes) throws IOException {
+        Diff.Hunk head = changes.get(0), tail = changes.get(changes.size() - 1);
+        int before = Math.min(CONTEXT, head.aStart);
+        int after = Math.min(CONTEXT, a.size() - tail.aEnd);
+        int aFrom = head.aStart - before, aTo = tail.aEnd + after;
+        int bFrom = head.bStart - before, bTo = tail.bEnd + after;
+        text("@@ -" + range(aFrom, aTo) + " +" + range(bFrom, bTo) + " @@\n");
+        int at = aFrom;
+        for (Diff.Hunk h : changes) {
+            lines(' ', a, at, h.aStart);
+            lines('-', a, h.aStart, h.aEnd);
+            lines('+', b, h.bStart, h.bEnd);
+            at = h.aEnd;
+        }
+        lines(' ', a, at, aTo);
+    }
+
+    /** Returns the START,COUNT of lines FROM up to TO as diff -u writes
+     *  them: numbered from 1, the line before an empty range, and the
+     *  count left out when it is 1. */
+    private static String range(int from, int to) {
+        int count = to - from;
+        if (count == 1) {
+            return Integer.toString(from + 1);
+        }
+        return (count == 0 ? from : from + 1) + "," + count;
+    }
+
+    /** Writes lines FROM up to TO of L, each preceded by PREFIX. */
+    private void lines(char prefix, Diff.Lines l, int from, int to) throws IOException {
+        for (int i = from; i < to; i += 1) {
+            out.write(prefix);
+            write(l.slice(i, i + 1));
+            if (!l.endsWithNewline(i, i + 1)) {
+                text("\n\\ No newline at end of file\n");
+            }
+        }
+    }
+
+    private static boolean isBinary(ByteBuffer contents) {
+        for (int i = 0; i < Math.min(contents.limit(), BINARY_PROBE); i += 1) {
+            if (contents.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String abbreviate(String hash) {
+        return hash == null ? "0000000" : hash.substring(0, ABBREV);
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(bytes.remaining(), Blob.CHUNK_SIZE)];
+        while (bytes.hasRemaining()) {
+            int n = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    private void text(String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Writes out everything printed so far. */
+    void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,231 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/** A lock on a file of the repository, such as the index or a branch, so
+ *  that gitlet processes running at the same time do not lose each
+ *  other's updates.
+ *
+ *  The lock on a file is held by creating its lock file in .gitlet/locks
+ *  exclusively; the lock file holds the id of the owning process.  A
+ *  process that finds the lock taken retries with backoff for the lock
+ *  timeout, read from the gitlet.lockTimeout system property or the
+ *  GITLET_LOCK_TIMEOUT environment variable in milliseconds (5000 by
+ *  default), and then fails with a GitletException naming the owner.
+ *
+ *  Locked files are replaced by writing a temporary file and renaming it
+ *  over them, so readers never see partial contents, and branches are
+ *  moved by compare-and-swap, so a branch that another process moved in
+ *  the meantime is reported instead of overwritten.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class LockFile implements AutoCloseable {
+
+    /** The directory holding lock files. */
+    static final File LOCKS = Utils.join(Repository.GITLET_DIR, "locks");
+
+    /** Locked while writing any of the files derived from the stored
+     *  commits (the commit graph, the commit and message indexes and the
+     *  bitmaps), which any command may build or extend.  One lock for all
+     *  of them, taken before the lock on the file itself, so that building
+     *  one while extending another cannot deadlock. */
+    static final File DERIVED = Utils.join(Repository.GITLET_DIR, "derived");
+
+    private static final long DEFAULT_TIMEOUT = 5000;
+    private static final long MAX_BACKOFF = 200;
+
+    /** Files locked by this process. */
+    private static final Set<File> HELD = new HashSet<>();
+
+    private final File target;
+    private final File lock;
+
+    private LockFile(File target, File lock) {
+        this.target = target;
+        this.lock = lock;
+    }
+
+    /** Returns the configured lock timeout in milliseconds. */
+    static long timeout() {
+        String value = System.getProperty("gitlet.lockTimeout");
+        if (value == null) {
+            value = System.getenv("GITLET_LOCK_TIMEOUT");
+        }
+        if (value != null) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                // Fall back to the default below
+            }
+        }
+        return DEFAULT_TIMEOUT;
+    }
+
+    /** Locks TARGET, waiting for the lock timeout if another process holds
+     *  it.  Throws GitletException if it stays locked. */
+    static LockFile acquire(File target) throws GitletException {
+        long deadline = System.currentTimeMillis() + timeout();
+        long backoff = 1;
+        while (true) {
+            LockFile l = tryAcquire(target);
+            if (l != null) {
+                return l;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                throw new GitletException(busyMessage(target));
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GitletException(busyMessage(target));
+            }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+        }
+    }
+
+    /** Locks TARGET if no other process holds it, or returns null. */
+    static LockFile tryAcquire(File target) throws IllegalArgumentException {
+        File lock = lockFor(target);
+        if (!LOCKS.isDirectory() && !LOCKS.mkdirs()) {
+            throw new IllegalArgumentException("cannot create directory " + LOCKS);
+        }
+        try {
+            Files.write(lock.toPath(),
+                    Long.toString(ProcessHandle.current().pid()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        synchronized (HELD) {
+            HELD.add(target.getAbsoluteFile());
+        }
+        return new LockFile(target, lock);
+    }
+
+    /** Returns true if this process holds the lock on TARGET. */
+    static boolean isHeld(File target) {
+        synchronized (HELD) {
+            return HELD.contains(target.getAbsoluteFile());
+        }
+    }
+
+    /** Releases the lock. */
+    @Override
+    public void close() {
+        synchronized (HELD) {
+            HELD.remove(target.getAbsoluteFile());
+        }
+        lock.delete();
+    }
+
+    private static File lockFor(File target) {
+        String name = Repository.GITLET_DIR.getAbsoluteFile().toPath()
+                .relativize(target.getAbsoluteFile().toPath()).toString();
+        return Utils.join(LOCKS, name.replace(File.separatorChar, '.') + ".lock");
+    }
+
+    private static String busyMessage(File target) {
+        File lock = lockFor(target);
+        String owner = "another gitlet process";
+        try {
+            long pid = Long.parseLong(Utils.readContentsAsString(lock).trim());
+            owner = ProcessHandle.of(pid).isPresent() ? "process " + pid
+                    : "process " + pid + ", which is no longer running (remove " + lock + " if so)";
+        } catch (IllegalArgumentException e) {
+            // The owner released the lock meanwhile, or it is unreadable
+        }
+        return "Unable to lock " + target.getName() + ": it is in use by " + owner + ". Try again.";
+    }
+
+    /* WRITING */
+
+    /** Replaces the contents of FILE with CONTENTS (byte arrays or
+     *  Strings, as for Utils.writeContents) by renaming a temporary file
+     *  over it.  Unless this process already holds the lock on FILE, the
+     *  lock is held while writing. */
+    static void write(File file, Object... contents) throws GitletException {
+        if (isHeld(file)) {
+            replace(file, contents);
+            return;
+        }
+        LockFile l = acquire(file);
+        try {
+            replace(file, contents);
+        } finally {
+            l.close();
+        }
+    }
+
+    /** Returns the result of ACTION, run holding the lock on TARGET unless
+     *  this process holds it already. */
+    static <T> T locked(File target, Supplier<T> action) throws GitletException {
+        if (isHeld(target)) {
+            return action.get();
+        }
+        LockFile l = acquire(target);
+        try {
+            return action.get();
+        } finally {
+            l.close();
+        }
+    }
+
+    /** Sets the ref (HEAD or a branch) REF to VALUE, or deletes it if VALUE
+     *  is null, provided it still holds EXPECTED, or does not exist if
+     *  EXPECTED is null.  Throws GitletException if another process changed
+     *  it. */
+    static void compareAndSet(File ref, String expected, String value) throws GitletException {
+        LockFile l = acquire(ref);
+        try {
+            String current = ref.isFile() ? Utils.readContentsAsString(ref) : null;
+            if (!Objects.equals(current, expected)) {
+                throw new GitletException(ref.getName() + " was changed by another gitlet process. Try again.");
+            }
+            if (value == null) {
+                if (!ref.delete()) {
+                    throw new IllegalArgumentException("cannot delete " + ref);
+                }
+            } else {
+                replace(ref, value);
+            }
+        } finally {
+            l.close();
+        }
+    }
+
+    private static void replace(File file, Object... contents) {
+        File dir = CheckoutWriter.TMP;
+        File tmp;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create directory " + dir);
+            }
+            tmp = File.createTempFile("write-" + file.getName(), ".tmp", dir);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try {
+            Utils.writeContents(tmp, contents);
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package gitlet;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/** Prints commits for log and global-log through a single buffered writer,
+ *  applying the options
+ *
+ *      -n COUNT          print at most COUNT commits
+ *      --since DATE      skip commits older than DATE
+ *      --until DATE      skip commits newer than DATE
+ *      --oneline         print the abbreviated id and message on one line
+ *      --format=FORMAT   print each commit as FORMAT, where %H is the id,
+ *                        %h the abbreviated id, %s the message, %d the
+ *                        date, %P and %p the (abbreviated) parents, %n a
+ *                        newline and %% a percent sign
+ *      --abbrev[=LENGTH] abbreviate ids to their shortest unique prefix of
+ *                        at least LENGTH (default CommitIndex.MIN_ABBREV)
+ *                        digits instead of a fixed ABBREV digits
+ *
+ *  DATE is yyyy-MM-dd, yyyy-MM-dd HH:mm:ss or a commit timestamp.  Callers
+ *  check done() and inRange() before reading a commit, so that log -n 10
+ *  only reads 10 commits.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class LogPrinter {
+
+    /** Length of abbreviated commit ids. */
+    private static final int ABBREV = 7;
+
+    private static final String[] DATE_FORMATS = {
+        "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd", "EEE MMM d HH:mm:ss yyyy Z",
+    };
+
+    private int limit = -1;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    private String format;
+    /** Shortest unique abbreviation length, or -1 for a fixed length. */
+    private int abbrev = -1;
+    private int printed;
+    private final PrintWriter out = new PrintWriter(new BufferedWriter(
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8), Blob.CHUNK_SIZE));
+
+    /** Returns a printer for the options ARGS.  Throws
+     *  IllegalArgumentException if they are not valid. */
+    static LogPrinter parse(String[] args) throws IllegalArgumentException {
+        LogPrinter p = new LogPrinter();
+        for (int i = 0; i < args.length; i += 1) {
+            String arg = args[i];
+            if (arg.equals("-n") && i + 1 < args.length) {
+                p.limit = parseCount(args[++i]);
+            } else if (arg.startsWith("-n") && arg.length() > 2) {
+                p.limit = parseCount(arg.substring(2));
+            } else if (arg.equals("--since") && i + 1 < args.length) {
+                p.since = parseDate(args[++i]);
+            } else if (arg.equals("--until") && i + 1 < args.length) {
+                p.until = parseDate(args[++i]);
+            } else if (arg.equals("--oneline")) {
+                p.format = "%h %s";
+            } else if (arg.equals("--abbrev")) {
+                p.abbrev = CommitIndex.MIN_ABBREV;
+            } else if (arg.startsWith("--abbrev=")) {
+                p.abbrev = parseCount(arg.substring("--abbrev=".length()));
+                if (p.abbrev < CommitIndex.MIN_ABBREV || p.abbrev > Utils.UID_LENGTH) {
+                    throw new IllegalArgumentException("bad abbreviation length " + arg);
+                }
+            } else if (arg.startsWith("--format=")) {
+                p.format = arg.substring("--format=".length());
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        return p;
+    }
+
+    private static int parseCount(String s) {
+        try {
+            int n = Integer.parseInt(s);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException excp) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("bad count " + s);
+    }
+
+    private static long parseDate(String s) {
+        for (String f : DATE_FORMATS) {
+            try {
+                SimpleDateFormat sdf = new SimpleDateFormat(f);
+                sdf.setLenient(false);
+                return sdf.parse(s).getTime();
+            } catch (ParseException excp) {
+                // Try the next format
+            }
+        }
+        throw new IllegalArgumentException("bad date " + s);
+    }
+
+    /** Returns true once the commit limit has been printed. */
+    boolean done() {
+        return limit >= 0 && printed >= limit;
+    }
+
+    /** Returns true if a commit made at TIME, in milliseconds since the
+     *  epoch, passes --since and --until. */
+    boolean inRange(long time) {
+        return time >= since && time <= until;
+    }
+
+    /** Returns true if the printer only needs the commits it prints, so
+     *  that commits can be filtered by time before they are read. */
+    boolean filtersTime() {
+        return since != Long.MIN_VALUE || until != Long.MAX_VALUE;
+    }
+
+    /** Prints commit C with id SHA.  Without a format, SEPARATOR tells
+     *  whether "===" follows it. */
+    void print(String sha, Commit c, boolean separator) {
+        printed += 1;
+        if (format != null) {
+            out.println(expand(sha, c));
+            return;
+        }
+        out.println("Commit " + sha);
+        if (c.getSecParent() != null) {
+            out.println("Merge: " + abbreviate(c.getParent()) + " "
+                    + abbreviate(c.getSecParent()));
+        }
+        out.println("Date: " + c.getTimeStamp());
+        out.println(c.getMessage());
+        out.println();
+        if (separator) {
+            out.println("===");
+        }
+    }
+
+    private String expand(String sha, Commit c) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < format.length(); i += 1) {
+            char ch = format.charAt(i);
+            if (ch != '%' || i + 1 == format.length()) {
+                s.append(ch);
+                continue;
+            }
+            i += 1;
+            switch (format.charAt(i)) {
+                case 'H':
+                    s.append(sha);
+                    break;
+                case 'h':
+                    s.append(abbreviate(sha));
+                    break;
+                case 's':
+                    s.append(c.getMessage());
+                    break;
+                case 'd':
+                    s.append(c.getTimeStamp());
+                    break;
+                case 'P':
+                    s.append(parents(c, false));
+                    break;
+                case 'p':
+                    s.append(parents(c, true));
+                    break;
+                case 'n':
+                    s.append('\n');
+                    break;
+                case '%':
+                    s.append('%');
+                    break;
+                default:
+                    s.append('%').append(format.charAt(i));
+            }
+        }
+        return s.toString();
+    }
+
+    private String parents(Commit c, boolean abbreviate) {
+        StringBuilder s = new StringBuilder();
+        for (String p : new String[] {c.getParent(), c.getSecParent()}) {
+            if (p != null) {
+                if (s.length() > 0) {
+                    s.append(' ');
+                }
+                s.append(abbreviate ? abbreviate(p) : p);
+            }
+        }
+        return s.toString();
+    }
+
+    /** Returns the abbreviation of commit id SHA. */
+    private String abbreviate(String sha) {
+        if (abbrev < 0) {
+            return sha.substring(0, ABBREV);
+        }
+        return CommitIndex.abbreviate(sha, abbrev);
+    }
+
+    /** Writes out everything printed so far. */
+    void flush() {
+        out.flush();
+    }
+}
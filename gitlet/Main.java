@@ -1,7 +1,10 @@
 package gitlet;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author Abdelrahman Ezz
@@ -26,12 +29,55 @@ public class Main {
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
     public static void main(String[] args) {
+        // A running daemon serves the command without loading the
+        // repository in this process
+        Integer status = args.length > 0 && !args[0].equals("daemon") ? Daemon.forward(args) : null;
+        if (status == null)
+            status = execute(args);
+        if (status != 0)
+            System.exit(status);
+    }
+
+    /** Runs the command in ARGS in this process and returns its exit
+     *  status. */
+    static int execute(String[] args) {
         if (args.length == 0)
         {
             Utils.message("Please enter a command.");
-            return;
+            return 0;
+        }
+
+        // Commands that change the index, the branches or the working
+        // directory hold the index lock, so that concurrent gitlet
+        // processes take turns; a process that cannot get it fails.  Any
+        // command first finishes a checkout that was interrupted
+        LockFile lock = null;
+        try {
+            if (Repository.GITLET_DIR.isDirectory()
+                    && (LOCKED_COMMANDS.contains(args[0]) || CheckoutWriter.JOURNAL.isFile())) {
+                lock = LockFile.acquire(Repository.INDEX);
+                CheckoutWriter.recover();
+            }
+            run(args);
+        } catch (GitletException e) {
+            Utils.message(e.getMessage());
+            return 1;
+        } finally {
+            if (lock != null)
+                lock.close();
+            if (ObjectCache.reportStats())
+                System.err.println(ObjectStore.cacheStats());
         }
+        return 0;
+    }
+
+    /** Commands run while holding the index lock. */
+    private static final Set<String> LOCKED_COMMANDS = new HashSet<>(Arrays.asList(
+            "add", "rm", "commit", "checkout", "branch", "rm-branch", "reset",
+            "merge", "pack", "migrate-trees"));
 
+    /** Runs the command ARGS[0] with the operands in the rest of ARGS. */
+    private static void run(String[] args) {
         String firstArg = args[0];
         switch(firstArg) {
             case "init":
@@ -43,11 +89,11 @@ public class Main {
                 break;
 
             case "add":
-                if (!validateNumArgs(args, 2)) {
+                if (args.length < 2) {
                     Utils.message("Incorrect operands.");
                     break;
                 }
-                Repository.add(args[1]);
+                Repository.add(Arrays.copyOfRange(args, 1, args.length));
                 break;
 
             case "commit":
@@ -58,33 +104,28 @@ public class Main {
                 Repository.commit(args[1]);
                 break;
             case "rm":
-                if (!validateNumArgs(args, 2)) {
+                if (args.length < 2) {
                     Utils.message("Incorrect operands.");
                     break;
                 }
-                Repository.rm(args[1]);
+                Repository.rm(Arrays.copyOfRange(args, 1, args.length));
                 break;
 
             case "log":
-                if (!validateNumArgs(args, 1)) {
-                    Utils.message("Incorrect operands.");
-                    break;
-                }
-                Repository.log();
+                Repository.log(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "global-log":
-                if (!validateNumArgs(args, 1)) {
-                    Utils.message("Incorrect operands.");
-                    break;
-                }
-                Repository.global_Log();
+                Repository.global_Log(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "find":
-                if (!validateNumArgs(args, 2)) {
+                if (validateNumArgs(args, 2)) {
+                    Repository.find(null, args[1]);
+                } else if (validateNumArgs(args, 3)
+                        && (args[1].equals("--word") || args[1].equals("--prefix"))) {
+                    Repository.find(args[1], args[2]);
+                } else {
                     Utils.message("Incorrect operands.");
-                    break;
                 }
-                Repository.find(args[1]);
                 break;
             case "status":
                 if (!validateNumArgs(args, 1)) {
@@ -115,11 +156,13 @@ public class Main {
                 Repository.rmBranch(args[1]);
                 break;
             case "reset":
-                if (!validateNumArgs(args, 2)) {
+                if (validateNumArgs(args, 2)) {
+                    Repository.reset(args[1], false);
+                } else if (validateNumArgs(args, 3) && args[1].equals("-v")) {
+                    Repository.reset(args[2], true);
+                } else {
                     Utils.message("Incorrect operands.");
-                    break;
                 }
-                Repository.reset(args[1]);
                 break;
             case "merge":
                 if (!validateNumArgs(args, 2)) {
@@ -128,6 +171,49 @@ public class Main {
                 }
                 Repository.merge(args[1]);
                 break;
+            case "diff":
+                Repository.diff(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "merge-base":
+                if (validateNumArgs(args, 3)) {
+                    Repository.mergeBase(args[1], args[2], false);
+                } else if (validateNumArgs(args, 4) && args[1].equals("--all")) {
+                    Repository.mergeBase(args[2], args[3], true);
+                } else {
+                    Utils.message("Incorrect operands.");
+                }
+                break;
+            case "pack":
+                if (!validateNumArgs(args, 1)) {
+                    Utils.message("Incorrect operands.");
+                    break;
+                }
+                Repository.pack();
+                break;
+            case "verify-trees":
+                if (!validateNumArgs(args, 1)) {
+                    Utils.message("Incorrect operands.");
+                    break;
+                }
+                Repository.verifyTrees();
+                break;
+            case "migrate-trees":
+                if (!validateNumArgs(args, 1)) {
+                    Utils.message("Incorrect operands.");
+                    break;
+                }
+                Repository.migrateTrees();
+                break;
+
+            case "daemon":
+                if (validateNumArgs(args, 1)) {
+                    Daemon.serve();
+                } else if (validateNumArgs(args, 2) && args[1].equals("--stop")) {
+                    Daemon.stop();
+                } else {
+                    Utils.message("Incorrect operands.");
+                }
+                break;
 
             default:
                 Utils.message("No command with that name exists.");
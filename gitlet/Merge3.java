@@ -0,0 +1,141 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** Merges two versions of a file line by line against their common
+ *  ancestor, like diff3.
+ *
+ *  The changes of each side since the base (see Diff) are laid over the
+ *  base lines.  Changes of one side that do not overlap or touch a change
+ *  of the other are taken as they are, and so are the same change made on
+ *  both sides.  Only where both sides changed the same lines differently is
+ *  a conflict written, holding just those lines:
+ *
+ *      <<<<<<< HEAD
+ *      the lines of the current branch
+ *      =======
+ *      the lines of the given branch
+ *      >>>>>>>
+ *
+ *  The result is written straight from the slices of the three versions.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class Merge3 {
+
+    private static final byte[] OURS = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final Diff.Lines base;
+    private final Diff.Lines ours;
+    private final Diff.Lines theirs;
+    private final WritableByteChannel out;
+
+    private Merge3(Diff.Lines base, Diff.Lines ours, Diff.Lines theirs, WritableByteChannel out) {
+        this.base = base;
+        this.ours = ours;
+        this.theirs = theirs;
+        this.out = out;
+    }
+
+    /** Writes the merge of OURS and THEIRS, versions of the contents BASE,
+     *  to OUT.  Returns true if it holds conflicts. */
+    static boolean merge(ByteBuffer base, ByteBuffer ours, ByteBuffer theirs,
+                         WritableByteChannel out) throws IOException {
+        Diff.Lines[] lines = Diff.split(base, ours, theirs);
+        return new Merge3(lines[0], lines[1], lines[2], out).run();
+    }
+
+    private boolean run() throws IOException {
+        List<Diff.Hunk> a = Diff.diff(base, ours);
+        List<Diff.Hunk> b = Diff.diff(base, theirs);
+        boolean conflicts = false;
+        int ia = 0, ib = 0;
+        // Base lines before done are written; the sides are shifted from
+        // the base by the changes before done
+        int done = 0, shiftA = 0, shiftB = 0;
+        while (ia < a.size() || ib < b.size()) {
+            // The next group of changes that overlap or touch, covering the
+            // base lines lo up to hi
+            int lo = Integer.MAX_VALUE, hi;
+            if (ia < a.size()) {
+                lo = a.get(ia).aStart;
+            }
+            if (ib < b.size()) {
+                lo = Math.min(lo, b.get(ib).aStart);
+            }
+            hi = lo;
+            int endA = ia, endB = ib;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                if (endA < a.size() && a.get(endA).aStart <= hi) {
+                    hi = Math.max(hi, a.get(endA).aEnd);
+                    endA += 1;
+                    grew = true;
+                }
+                if (endB < b.size() && b.get(endB).aStart <= hi) {
+                    hi = Math.max(hi, b.get(endB).aEnd);
+                    endB += 1;
+                    grew = true;
+                }
+            }
+
+            write(base.slice(done, lo));
+            int growA = growth(a, ia, endA), growB = growth(b, ib, endB);
+            int aFrom = lo + shiftA, aTo = hi + shiftA + growA;
+            int bFrom = lo + shiftB, bTo = hi + shiftB + growB;
+            if (endB == ib) {
+                write(ours.slice(aFrom, aTo));
+            } else if (endA == ia || ours.sameLines(aFrom, aTo, theirs, bFrom, bTo)) {
+                write(theirs.slice(bFrom, bTo));
+            } else {
+                conflicts = true;
+                write(ByteBuffer.wrap(OURS));
+                writeLines(ours, aFrom, aTo);
+                write(ByteBuffer.wrap(SEPARATOR));
+                writeLines(theirs, bFrom, bTo);
+                write(ByteBuffer.wrap(THEIRS));
+            }
+            done = hi;
+            shiftA += growA;
+            shiftB += growB;
+            ia = endA;
+            ib = endB;
+        }
+        write(base.slice(done, base.size()));
+        return conflicts;
+    }
+
+    /** Returns the number of lines the changes FROM up to TO of HUNKS
+     *  add. */
+    private static int growth(List<Diff.Hunk> hunks, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i += 1) {
+            Diff.Hunk h = hunks.get(i);
+            n += (h.bEnd - h.bStart) - (h.aEnd - h.aStart);
+        }
+        return n;
+    }
+
+    /** Writes lines FROM up to TO of SIDE inside a conflict, ending them
+     *  with a newline so that the next marker starts a line. */
+    private void writeLines(Diff.Lines side, int from, int to) throws IOException {
+        write(side.slice(from, to));
+        if (!side.endsWithNewline(from, to)) {
+            write(ByteBuffer.wrap(NEWLINE));
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** An inverted index from commit messages, and from the words in them, to
+ *  the commits that have them, so that find does not read every commit.
+ *
+ *  The message-index file is memory-mapped and laid out as
+ *
+ *      "GLMX"  version(4)  keys(4)  stamp(8)
+ *      offsets: keys x offset(4) of the key records, in key order
+ *      key records: length(4)  key  count(4)  count x sha(20)
+ *
+ *  A key is EXACT followed by a whole message, or WORD followed by a word
+ *  of a message in lower case.  Keys are ordered by their UTF-8 bytes, so
+ *  a key is found by binary search and all words with a given prefix are
+ *  adjacent.  Commits added after the table was written go to the
+ *  message-index.log, a DerivedLog of length(4) key sha(20) postings, and
+ *  the table is rebuilt once the log would hold more than MAX_LOG
+ *  postings.  The index covers every stored commit: when it is missing, it
+ *  is built by reading them all once.  Both files are only ever replaced,
+ *  by renaming a new one over them while holding LockFile.DERIVED, so a
+ *  mapped file never changes and a build never loses the postings of a
+ *  concurrent commit.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class MessageIndex {
+
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int SHA_BYTES = 20;
+    private static final int MAX_LOG = 1024;
+
+    /** Key prefixes. */
+    private static final char EXACT = '=';
+    private static final char WORD = '#';
+
+    private final ByteBuffer buf;
+    private final int keys;
+    private final long stamp;
+    /** The postings of the log, as stored. */
+    private final byte[] entries;
+    /** Postings read from the log, by key. */
+    private final TreeMap<String, Set<String>> log = new TreeMap<>();
+    private int logged;
+
+    /** Reads the index mapped in BUF, extended by LOG, the contents of the
+     *  log file read before mapping it. */
+    private MessageIndex(ByteBuffer buf, byte[] log) throws IOException {
+        if (buf.limit() < HEADER_SIZE || buf.get(0) != 'G' || buf.get(1) != 'L'
+                || buf.get(2) != 'M' || buf.get(3) != 'X' || buf.getInt(4) != VERSION) {
+            throw new IOException("bad message index");
+        }
+        this.buf = buf;
+        this.keys = buf.getInt(8);
+        this.stamp = buf.getLong(12);
+        if (HEADER_SIZE + 4L * keys > buf.limit()) {
+            throw new IOException("truncated message index");
+        }
+        this.entries = DerivedLog.entries(log, stamp);
+        ByteBuffer in = ByteBuffer.wrap(entries);
+        int at = 0;
+        while (at + 4 <= entries.length && at + 4 + in.getInt(at) + SHA_BYTES <= entries.length) {
+            int n = in.getInt(at);
+            String key = new String(entries, at + 4, n, StandardCharsets.UTF_8);
+            String sha = Utils.sha1FromBytes(Arrays.copyOfRange(entries, at + 4 + n, at + 4 + n + SHA_BYTES));
+            this.log.computeIfAbsent(key, k -> new TreeSet<>()).add(sha);
+            logged += 1;
+            at += 4 + n + SHA_BYTES;
+        }
+    }
+
+    /* QUERIES */
+
+    /** Returns the commits whose message is MESSAGE, in lexicographic
+     *  order. */
+    static List<String> exact(String message) throws IllegalArgumentException {
+        return open().query(EXACT + message, false);
+    }
+
+    /** Returns the commits whose message contains the word WORD, in
+     *  lexicographic order.  Case is ignored. */
+    static List<String> word(String word) throws IllegalArgumentException {
+        return open().query(WORD + word.toLowerCase(), false);
+    }
+
+    /** Returns the commits whose message contains a word starting with
+     *  PREFIX, in lexicographic order.  Case is ignored. */
+    static List<String> prefix(String prefix) throws IllegalArgumentException {
+        return open().query(WORD + prefix.toLowerCase(), true);
+    }
+
+    private List<String> query(String key, boolean isPrefix) {
+        byte[] target = key.getBytes(StandardCharsets.UTF_8);
+        TreeSet<String> result = new TreeSet<>();
+
+        // Binary search for the first key not below TARGET
+        int lo = 0, hi = keys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Arrays.compareUnsigned(keyAt(mid), target) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < keys; i += 1) {
+            byte[] k = keyAt(i);
+            if (isPrefix ? !startsWith(k, target) : !Arrays.equals(k, target)) {
+                break;
+            }
+            result.addAll(postingsAt(i));
+        }
+
+        for (Map.Entry<String, Set<String>> e : log.tailMap(key, true).entrySet()) {
+            if (isPrefix ? !e.getKey().startsWith(key) : !e.getKey().equals(key)) {
+                break;
+            }
+            result.addAll(e.getValue());
+        }
+        return new ArrayList<>(result);
+    }
+
+    private byte[] keyAt(int i) {
+        int at = buf.getInt(HEADER_SIZE + 4 * i);
+        return bytes(at + 4, buf.getInt(at));
+    }
+
+    private List<String> postingsAt(int i) {
+        int at = buf.getInt(HEADER_SIZE + 4 * i);
+        at += 4 + buf.getInt(at);
+        int n = buf.getInt(at);
+        List<String> shas = new ArrayList<>(n);
+        for (int k = 0; k < n; k += 1) {
+            shas.add(Utils.sha1FromBytes(bytes(at + 4 + k * SHA_BYTES, SHA_BYTES)));
+        }
+        return shas;
+    }
+
+    private byte[] bytes(int at, int n) {
+        byte[] result = new byte[n];
+        buf.get(at, result);
+        return result;
+    }
+
+    private static boolean startsWith(byte[] k, byte[] prefix) {
+        return k.length >= prefix.length
+                && Arrays.equals(k, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /* UPDATING */
+
+    /** Adds commit C to the index.  Called after a command writes a
+     *  commit. */
+    static void add(Commit c) throws IllegalArgumentException {
+        add(Collections.singletonList(c));
+    }
+
+    /** Adds COMMITS to the index, or builds the index from every stored
+     *  commit if there is none yet. */
+    static void add(List<Commit> commits) throws IllegalArgumentException {
+        LockFile.locked(LockFile.DERIVED, () -> {
+            if (!Repository.MESSAGE_INDEX.isFile()) {
+                open();
+                return null;
+            }
+            MessageIndex index = open();
+            Map<String, Set<String>> added = new TreeMap<>();
+            for (Commit c : commits) {
+                addPostings(c, added);
+            }
+            int n = 0;
+            for (Set<String> shas : added.values()) {
+                n += shas.size();
+            }
+            try {
+                if (index.logged + n > MAX_LOG) {
+                    Map<String, Set<String>> all = index.postings();
+                    merge(all, added);
+                    write(all);
+                    return null;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                for (Map.Entry<String, Set<String>> e : added.entrySet()) {
+                    byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                    for (String sha : e.getValue()) {
+                        out.writeInt(key.length);
+                        out.write(key);
+                        out.write(Utils.sha1ToBytes(sha));
+                    }
+                }
+                DerivedLog.write(Repository.MESSAGE_INDEX_LOG, index.stamp, index.entries, bytes.toByteArray());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /** Adds the keys of the message of commit C, with C, to POSTINGS. */
+    private static void addPostings(Commit c, Map<String, Set<String>> postings) {
+        String message = c.getMessage() == null ? "" : c.getMessage();
+        postings.computeIfAbsent(EXACT + message, k -> new TreeSet<>()).add(c.getSHA());
+        for (String word : message.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                postings.computeIfAbsent(WORD + word, k -> new TreeSet<>()).add(c.getSHA());
+            }
+        }
+    }
+
+    private static void merge(Map<String, Set<String>> into, Map<String, Set<String>> from) {
+        for (Map.Entry<String, Set<String>> e : from.entrySet()) {
+            into.computeIfAbsent(e.getKey(), k -> new TreeSet<>()).addAll(e.getValue());
+        }
+    }
+
+    /** Returns every posting of this index, table and log. */
+    private Map<String, Set<String>> postings() {
+        Map<String, Set<String>> all = new TreeMap<>();
+        for (int i = 0; i < keys; i += 1) {
+            String key = new String(keyAt(i), StandardCharsets.UTF_8);
+            all.computeIfAbsent(key, k -> new TreeSet<>()).addAll(postingsAt(i));
+        }
+        merge(all, log);
+        return all;
+    }
+
+    /* FILE */
+
+    /** Maps the index, first building it from every stored commit if there
+     *  is none or it cannot be used. */
+    private static MessageIndex open() throws IllegalArgumentException {
+        MessageIndex index = mapIfUsable();
+        if (index != null) {
+            return index;
+        }
+        return LockFile.locked(LockFile.DERIVED, () -> {
+            // Another process may have built it meanwhile
+            MessageIndex built = mapIfUsable();
+            if (built != null) {
+                return built;
+            }
+            try {
+                Map<String, Set<String>> all = new TreeMap<>();
+                for (String sha : ObjectStore.listCommits()) {
+                    addPostings(ObjectStore.readCommit(sha), all);
+                }
+                write(all);
+                return map();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        });
+    }
+
+    /** Maps the index, or returns null if there is none or it cannot be
+     *  used. */
+    private static MessageIndex mapIfUsable() {
+        if (Repository.MESSAGE_INDEX.isFile()) {
+            try {
+                return map();
+            } catch (IOException excp) {
+                // Unusable: built again by the caller
+            }
+        }
+        return null;
+    }
+
+    private static MessageIndex map() throws IOException {
+        byte[] log = DerivedLog.read(Repository.MESSAGE_INDEX_LOG);
+        try (FileChannel ch = FileChannel.open(Repository.MESSAGE_INDEX.toPath(), StandardOpenOption.READ)) {
+            return new MessageIndex(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), log);
+        }
+    }
+
+    /** Writes a new index file holding POSTINGS in its table, and drops the
+     *  log, whose postings POSTINGS include. */
+    private static void write(Map<String, Set<String>> postings) throws IOException {
+        List<byte[]> sorted = new ArrayList<>();
+        for (String key : postings.keySet()) {
+            sorted.add(key.getBytes(StandardCharsets.UTF_8));
+        }
+        sorted.sort(Arrays::compareUnsigned);
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        int base = HEADER_SIZE + 4 * sorted.size();
+        int[] offsets = new int[sorted.size()];
+        for (int i = 0; i < sorted.size(); i += 1) {
+            offsets[i] = base + out.size();
+            byte[] key = sorted.get(i);
+            Set<String> shas = postings.get(new String(key, StandardCharsets.UTF_8));
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(shas.size());
+            for (String sha : shas) {
+                out.write(Utils.sha1ToBytes(sha));
+            }
+        }
+
+        File tmp = File.createTempFile("message", ".tmp", Repository.GITLET_DIR);
+        try (DataOutputStream file = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+            file.writeBytes("GLMX");
+            file.writeInt(VERSION);
+            file.writeInt(sorted.size());
+            file.writeLong(DerivedLog.newStamp());
+            for (int offset : offsets) {
+                file.writeInt(offset);
+            }
+            records.writeTo(file);
+        }
+        Files.move(tmp.toPath(), Repository.MESSAGE_INDEX.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // Ignored from now on, as it extends the old file
+        Repository.MESSAGE_INDEX_LOG.delete();
+    }
+}
@@ -0,0 +1,112 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.ToLongFunction;
+
+/** A least-recently-used cache of stored objects by SHA, bounded by the
+ *  total weight of its entries, where the weight of an entry is what
+ *  WEIGHER says, such as its number of tree entries or bytes.  Stored
+ *  objects never change, so entries stay valid for the life of the process,
+ *  such as a Daemon; callers must not modify the objects they get.
+ *
+ *  Each cache counts its hits, misses and evictions, which Main prints to
+ *  standard error after every command when the gitlet.cacheStats system
+ *  property or the GITLET_CACHE_STATS environment variable is set, so that
+ *  the budgets can be tuned.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class ObjectCache<V> {
+
+    private final String name;
+    private final long budget;
+    /** Heaviest entry kept; heavier objects are not cached at all, so one
+     *  of them does not evict everything else. */
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<String, V> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /** A cache called NAME holding entries weighing up to BUDGET in total,
+     *  and MAXWEIGHT each, as weighed by WEIGHER. */
+    ObjectCache(String name, long budget, long maxWeight, ToLongFunction<V> weigher) {
+        this.name = name;
+        this.budget = budget;
+        this.maxWeight = Math.min(budget, maxWeight);
+        this.weigher = weigher;
+    }
+
+    /** Returns the budget set by the system property PROPERTY or the
+     *  environment variable ENV, or DEFAULTBUDGET. */
+    static long budget(String property, String env, long defaultBudget) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            value = System.getenv(env);
+        }
+        if (value != null) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                // Fall back to the default below
+            }
+        }
+        return defaultBudget;
+    }
+
+    /** Returns true if hit and miss counts should be printed. */
+    static boolean reportStats() {
+        String value = System.getProperty("gitlet.cacheStats");
+        if (value == null) {
+            value = System.getenv("GITLET_CACHE_STATS");
+        }
+        return value != null && !value.isEmpty() && !value.equals("0");
+    }
+
+    /** Returns the entry for SHA, or null, counting a hit or a miss. */
+    synchronized V get(String sha) {
+        V value = entries.get(sha);
+        if (value == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return value;
+    }
+
+    /** Returns true if an entry weighing W would be kept. */
+    boolean fits(long w) {
+        return w <= maxWeight;
+    }
+
+    /** Keeps VALUE as the entry for SHA if it fits, evicting the least
+     *  recently used entries to stay within the budget. */
+    synchronized void put(String sha, V value) {
+        long w = weigher.applyAsLong(value);
+        if (!fits(w)) {
+            return;
+        }
+        V old = entries.put(sha, value);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+        weight += w;
+        Iterator<V> eldest = entries.values().iterator();
+        while (weight > budget && eldest.hasNext()) {
+            weight -= weigher.applyAsLong(eldest.next());
+            eldest.remove();
+            evictions += 1;
+        }
+    }
+
+    /** Returns a line reporting the counters and size of this cache. */
+    synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("%s: %d hits, %d misses (%d%% hit), %d evicted, %d entries weighing %d of %d",
+                name, hits, misses, lookups == 0 ? 0 : 100 * hits / lookups, evictions,
+                entries.size(), weight, budget);
+    }
+}
@@ -0,0 +1,531 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** Reads and writes commits, trees and blobs in the loose object format,
+ *  falling back to the packs (see Pack) for objects that are not loose.
+ *
+ *  Every object file starts with a fixed header
+ *
+ *      'G' 'L'  version  type  codec  length(8 bytes)
+ *
+ *  where LENGTH is the size of the uncompressed body, followed by the body
+ *  encoded with CODEC.  Files that do not start with the header were
+ *  written by Java serialization (or, for blobs, as raw bytes) and are
+ *  still read through the legacy paths.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class ObjectStore {
+
+    /** Format version written into every header. */
+    static final int VERSION = 1;
+    /** Size of the object header in bytes. */
+    static final int HEADER_SIZE = 13;
+
+    /** Object types. */
+    static final int COMMIT = 1;
+    static final int TREE = 2;
+    static final int BLOB = 3;
+    /** A blob stored in a pack as a delta against another blob. */
+    static final int DELTA = 4;
+
+    private static final byte MAGIC0 = 'G';
+    private static final byte MAGIC1 = 'L';
+
+    /** Compression applied to object bodies.  The codec is recorded in the
+     *  header, so objects written with different codecs can be mixed. */
+    enum Codec {
+        NONE, DEFLATE;
+
+        OutputStream wrap(OutputStream out) {
+            if (this == DEFLATE) {
+                return new DeflaterOutputStream(out);
+            }
+            return out;
+        }
+
+        InputStream wrap(InputStream in) {
+            if (this == DEFLATE) {
+                return new InflaterInputStream(in);
+            }
+            return in;
+        }
+    }
+
+    /** Codec used for newly written objects, read from the gitlet.codec
+     *  system property or the GITLET_CODEC environment variable ("none" or
+     *  "deflate", the default).  Blobs stored with NONE are copied to the
+     *  working directory and mapped without decoding (see Blob). */
+    static Codec codec = configuredCodec();
+
+    private static Codec configuredCodec() {
+        String value = System.getProperty("gitlet.codec");
+        if (value == null) {
+            value = System.getenv("GITLET_CODEC");
+        }
+        if (value != null) {
+            for (Codec c : Codec.values()) {
+                if (c.name().equalsIgnoreCase(value.trim())) {
+                    return c;
+                }
+            }
+        }
+        return Codec.DEFLATE;
+    }
+
+    /** The header of a stored object. */
+    static class Header {
+        final int type;
+        final Codec codec;
+        final long length;
+
+        Header(int type, Codec codec, long length) {
+            this.type = type;
+            this.codec = codec;
+            this.length = length;
+        }
+    }
+
+    /** A stretch of a loose file or pack holding the unencoded contents of
+     *  a blob. */
+    static class Region {
+        final File file;
+        final long offset;
+        final long length;
+
+        Region(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Copies the contents to OUT with FileChannel.transferTo, which
+         *  lets the kernel copy them without passing through the heap. */
+        void transferTo(WritableByteChannel out) throws IOException {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long pos = offset, end = offset + length;
+                while (pos < end) {
+                    long n = in.transferTo(pos, end - pos, out);
+                    if (n <= 0 && in.size() < end) {
+                        throw new IOException("truncated object in " + file);
+                    }
+                    pos += n;
+                }
+            }
+        }
+
+        /** Returns the contents as a read-only memory-mapped buffer, which
+         *  stays valid after the file is closed. */
+        ByteBuffer map() throws IOException {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return in.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+        }
+    }
+
+    /* COMMITS AND TREES */
+
+    /** Recently decoded commits and trees, weighed by their number of
+     *  entries (a commit counts as one), 100000 by default.  The cached
+     *  objects are shared by every reader, so they must not be changed;
+     *  callers change copies instead (see Tree.update). */
+    static final ObjectCache<Object> DECODED = new ObjectCache<>("commits and trees",
+            ObjectCache.budget("gitlet.objectCache", "GITLET_OBJECT_CACHE", 100000),
+            Long.MAX_VALUE, obj -> obj instanceof Tree ? 1 + ((Tree) obj).blobs.size() : 1);
+
+    /** Recently read blob contents, weighed by their size in bytes, 32 MiB
+     *  by default.  Blobs larger than a sixteenth of the budget are
+     *  streamed instead. */
+    static final ObjectCache<byte[]> BLOBS;
+
+    static {
+        long budget = ObjectCache.budget("gitlet.blobCache", "GITLET_BLOB_CACHE", 32L << 20);
+        BLOBS = new ObjectCache<>("blobs", budget, budget / 16, bytes -> bytes.length);
+    }
+
+    static Commit readCommit(String sha) throws IllegalArgumentException {
+        Object cached = DECODED.get(sha);
+        if (cached instanceof Commit) {
+            return (Commit) cached;
+        }
+        Commit c;
+        try (DataInputStream in = openBody(Repository.COMMITS, sha, COMMIT)) {
+            if (in == null) {
+                c = Utils.readObject(Utils.join(Repository.COMMITS, sha), Commit.class);
+            } else {
+                c = Commit.read(in);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        DECODED.put(sha, c);
+        return c;
+    }
+
+    static Tree readTree(String sha) throws IllegalArgumentException {
+        Object cached = DECODED.get(sha);
+        if (cached instanceof Tree) {
+            return (Tree) cached;
+        }
+        Tree t;
+        try (DataInputStream in = openBody(Repository.TREES, sha, TREE)) {
+            if (in == null) {
+                t = Utils.readObject(Utils.join(Repository.TREES, sha), Tree.class);
+            } else {
+                t = Tree.read(in);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        DECODED.put(sha, t);
+        return t;
+    }
+
+    /** Returns the contents of blob SHA, or null if it is too large for
+     *  BLOBS or stored in a legacy format; callers stream those instead. */
+    static byte[] readBlob(String sha) throws IllegalArgumentException {
+        byte[] cached = BLOBS.get(sha);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] body;
+        try (InputStream in = openStored(Repository.BLOBS, sha)) {
+            if (in == null) {
+                throw new IllegalArgumentException("no such object " + sha);
+            }
+            Header header = parseHeader(in.readNBytes(HEADER_SIZE));
+            if (header == null || header.type != BLOB || !BLOBS.fits(header.length)) {
+                return null;
+            }
+            body = header.codec.wrap(in).readNBytes((int) header.length);
+            if (body.length != header.length) {
+                throw new IOException("truncated blob " + sha);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        BLOBS.put(sha, body);
+        return body;
+    }
+
+    /** Returns the length of the contents of blob SHA, read from its header
+     *  without decoding its body, or -1 if it is in a legacy format. */
+    static long blobSize(String sha) throws IllegalArgumentException {
+        File f = Utils.join(Repository.BLOBS, sha);
+        try {
+            if (f.isFile()) {
+                try (InputStream in = Files.newInputStream(f.toPath())) {
+                    Header header = parseHeader(in.readNBytes(HEADER_SIZE));
+                    return header == null || header.type != BLOB ? -1 : header.length;
+                } catch (NoSuchFileException excp) {
+                    // Packed meanwhile by another process
+                }
+            }
+            return Pack.blobSize(sha);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns where the contents of blob SHA lie unencoded, as a loose
+     *  file or pack entry stored with Codec.NONE, or null if they are
+     *  compressed, a delta or in a legacy format. */
+    static Region rawBlob(String sha) throws IllegalArgumentException {
+        File f = Utils.join(Repository.BLOBS, sha);
+        if (!f.isFile()) {
+            return Pack.region(sha);
+        }
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+            while (buf.hasRemaining() && in.read(buf) > 0) {
+                continue;
+            }
+            return region(f, 0, buf.array(), in.size());
+        } catch (NoSuchFileException excp) {
+            // Packed meanwhile by another process
+            return Pack.region(sha);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the region of the body of the blob whose stored form of SIZE
+     *  bytes starts with the header bytes HEADER at OFFSET of FILE, or null
+     *  if it is not an unencoded blob. */
+    static Region region(File file, long offset, byte[] header, long size) {
+        Header h = parseHeader(header);
+        if (h == null || h.type != BLOB || h.codec != Codec.NONE
+                || h.length != size - HEADER_SIZE) {
+            return null;
+        }
+        return new Region(file, offset + HEADER_SIZE, h.length);
+    }
+
+    /** Returns a report of the hits and misses of the object caches. */
+    static String cacheStats() {
+        return DECODED.stats() + System.lineSeparator() + BLOBS.stats();
+    }
+
+    /** Returns the tree of commit C, or an empty tree if it has none. */
+    static Tree readTreeOf(Commit c) throws IllegalArgumentException {
+        if (c.getTree() == null) {
+            return new Tree();
+        }
+        return readTree(c.getTree());
+    }
+
+    static boolean containsCommit(String sha) {
+        return contains(Repository.COMMITS, sha);
+    }
+
+    /** Returns true if object SHA is stored loose in DIR or in a pack. */
+    static boolean contains(File dir, String sha) {
+        return Utils.join(dir, sha).isFile() || Pack.contains(sha);
+    }
+
+    /** Returns the SHAs of all stored commits, loose or packed, in
+     *  lexicographic order. */
+    static List<String> listCommits() {
+        TreeSet<String> all = new TreeSet<>(Pack.list(COMMIT));
+        List<String> loose = Utils.plainFilenamesIn(Repository.COMMITS);
+        if (loose != null) {
+            for (String name : loose) {
+                // Skip temporary files left by interrupted writes
+                if (name.length() == Utils.UID_LENGTH) {
+                    all.add(name);
+                }
+            }
+        }
+        return new ArrayList<>(all);
+    }
+
+    /** Stores commit C under its SHA and records it in the CommitIndex. */
+    static void writeCommit(Commit c) throws IllegalArgumentException {
+        if (contains(Repository.COMMITS, c.getSHA())) {
+            return;
+        }
+        writeObject(Utils.join(Repository.COMMITS, c.getSHA()), COMMIT, encode(c));
+        CommitIndex.add(c.getSHA());
+    }
+
+    /** Stores tree T under its hash. */
+    static void writeTree(Tree t) throws IllegalArgumentException {
+        if (contains(Repository.TREES, t.getHash())) {
+            return;
+        }
+        writeObject(Utils.join(Repository.TREES, t.getHash()), TREE, encode(t));
+    }
+
+    private static byte[] encode(Commit c) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            c.write(new DataOutputStream(bytes));
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding commit.");
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(Tree t) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            t.write(new DataOutputStream(bytes));
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding tree.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Writes BODY as an object of TYPE to FILE, going through a temporary
+     *  file so that readers never see a partially written object. */
+    private static void writeObject(File file, int type, byte[] body) {
+        try {
+            File tmp = File.createTempFile("obj", ".tmp", file.getParentFile());
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))) {
+                encode(out, type, new ByteArrayInputStream(body), body.length);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes the header and the encoded LENGTH bytes of BODY to OUT, leaving
+     *  OUT open. */
+    static void encode(OutputStream out, int type, InputStream body, long length) throws IOException {
+        writeHeader(out, type, codec, length);
+        OutputStream encoded = codec.wrap(new UnclosedOutputStream(out));
+        body.transferTo(encoded);
+        encoded.close();
+    }
+
+    /** An OutputStream that passes writes through to another stream and only
+     *  flushes it on close. */
+    private static class UnclosedOutputStream extends FilterOutputStream {
+        UnclosedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /* STORED FORM */
+
+    /** Opens the stored form (header and body) of object SHA, looking first
+     *  for a loose file in DIR and then in the packs.  Returns null if there
+     *  is no such object. */
+    static InputStream openStored(File dir, String sha) throws IOException {
+        File f = Utils.join(dir, sha);
+        if (f.isFile()) {
+            try {
+                return new BufferedInputStream(Files.newInputStream(f.toPath()), Blob.CHUNK_SIZE);
+            } catch (NoSuchFileException excp) {
+                // Packed meanwhile by another process
+            }
+        }
+        return Pack.open(sha);
+    }
+
+    /** Opens the decoded body of object SHA of TYPE kept in DIR.  Returns
+     *  null if the object is a loose file in a legacy format. */
+    static DataInputStream openBody(File dir, String sha, int type) throws IOException {
+        InputStream in = openStored(dir, sha);
+        if (in == null) {
+            throw new IllegalArgumentException("no such object " + sha);
+        }
+        Header header = parseHeader(in.readNBytes(HEADER_SIZE));
+        if (header == null || header.type != type) {
+            in.close();
+            if (header != null) {
+                throw new IOException("unexpected object type " + header.type);
+            }
+            return null;
+        }
+        return new DataInputStream(header.codec.wrap(in));
+    }
+
+    /** Writes the stored form of object SHA of TYPE kept in DIR to OUT.
+     *  Objects kept in a legacy format are converted on the way. */
+    static void copyStored(File dir, String sha, int type, OutputStream out) throws IOException {
+        try (InputStream in = openStored(dir, sha)) {
+            if (in == null) {
+                throw new IllegalArgumentException("no such object " + sha);
+            }
+            in.mark(HEADER_SIZE);
+            Header header = parseHeader(in.readNBytes(HEADER_SIZE));
+            if (header != null && header.codec == codec) {
+                in.reset();
+                in.transferTo(out);
+                return;
+            } else if (header != null) {
+                encode(out, type, header.codec.wrap(in), header.length);
+                return;
+            }
+        }
+        if (type == COMMIT) {
+            byte[] body = encode(readCommit(sha));
+            encode(out, type, new ByteArrayInputStream(body), body.length);
+        } else if (type == TREE) {
+            byte[] body = encode(readTree(sha));
+            encode(out, type, new ByteArrayInputStream(body), body.length);
+        } else {
+            File tmp = File.createTempFile("blob", ".tmp", Repository.BLOBS);
+            try {
+                Blob.writeTo(sha, tmp);
+                try (InputStream body = Files.newInputStream(tmp.toPath())) {
+                    encode(out, type, body, tmp.length());
+                }
+            } finally {
+                Files.delete(tmp.toPath());
+            }
+        }
+    }
+
+    /* HEADERS */
+
+    static void writeHeader(OutputStream out, int type, Codec c, long length) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(MAGIC0);
+        data.writeByte(MAGIC1);
+        data.writeByte(VERSION);
+        data.writeByte(type);
+        data.writeByte(c.ordinal());
+        data.writeLong(length);
+        data.flush();
+    }
+
+    /** Parses the header at the start of BUF, returning null if BUF does not
+     *  start with a valid object header (raw legacy blobs may start with
+     *  anything, so only a complete match counts). */
+    static Header parseHeader(byte[] buf) {
+        if (buf.length < HEADER_SIZE || buf[0] != MAGIC0 || buf[1] != MAGIC1
+                || buf[2] != VERSION || buf[3] < COMMIT || buf[3] > DELTA
+                || buf[4] < 0 || buf[4] >= Codec.values().length) {
+            return null;
+        }
+        long length = 0;
+        for (int i = 5; i < HEADER_SIZE; i += 1) {
+            length = (length << 8) | (buf[i] & 0xff);
+        }
+        return new Header(buf[3], Codec.values()[buf[4]], length);
+    }
+
+    /* FIELD ENCODING */
+
+    /** Writes the possibly null string S as a length followed by its UTF-8
+     *  bytes. */
+    static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[n];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
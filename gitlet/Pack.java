@@ -0,0 +1,648 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** A pack file holding many objects, together with its index.
+ *
+ *  The pack (pack-ID.pack) is the concatenation of the stored form of each
+ *  object, exactly as ObjectStore writes loose objects, except that a blob
+ *  may be stored as a DELTA object whose body is the SHA of a base blob
+ *  followed by a Delta against it.  The index
+ *  (pack-ID.idx) is memory-mapped and laid out as
+ *
+ *      "GLIX"  version(4)  count(4)
+ *      fanout: 256 x 4 bytes, the number of objects whose first SHA byte
+ *              is at most i
+ *      records: count x RECORD_SIZE bytes, sorted by SHA:
+ *              sha(20)  type(1)  offset(8)  length(8)
+ *
+ *  so an object is found by a binary search within its fanout bucket.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class Pack {
+
+    static final String PACK_SUFFIX = ".pack";
+    static final String IDX_SUFFIX = ".idx";
+
+    private static final int IDX_VERSION = 1;
+    private static final int FANOUT_OFFSET = 12;
+    private static final int RECORDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+    private static final int SHA_BYTES = 20;
+    private static final int RECORD_SIZE = SHA_BYTES + 1 + 8 + 8;
+
+    /** Longest chain of deltas needed to rebuild a blob. */
+    static final int MAX_DELTA_DEPTH = 10;
+    /** Blobs larger than this are always stored whole. */
+    static final long DELTA_SIZE_LIMIT = 16 * 1024 * 1024;
+
+    /** The packs of the repository, loaded on first use. */
+    private static List<Pack> packs;
+    /** Names of the index files PACKS were loaded from. */
+    private static Set<String> loadedNames;
+
+    private final File packFile;
+    private final File idxFile;
+    private final MappedByteBuffer idx;
+    private final int count;
+
+    /** A located object inside a pack. */
+    static class Entry {
+        final String sha;
+        final int type;
+        final long offset;
+        final long length;
+
+        Entry(String sha, int type, long offset, long length) {
+            this.sha = sha;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private Pack(File idxFile) throws IOException {
+        this.idxFile = idxFile;
+        String name = idxFile.getName();
+        this.packFile = Utils.join(idxFile.getParentFile(),
+                name.substring(0, name.length() - IDX_SUFFIX.length()) + PACK_SUFFIX);
+        try (FileChannel ch = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ)) {
+            this.idx = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (idx.limit() < RECORDS_OFFSET || idx.get(0) != 'G' || idx.get(1) != 'L'
+                || idx.get(2) != 'I' || idx.get(3) != 'X' || idx.getInt(4) != IDX_VERSION) {
+            throw new IOException("bad pack index " + idxFile);
+        }
+        this.count = idx.getInt(8);
+    }
+
+    /* LOOKUP */
+
+    /** Returns the packs of the repository. */
+    static synchronized List<Pack> all() {
+        if (packs == null) {
+            // Only published once complete, for the workers storing and
+            // writing blobs in parallel
+            List<Pack> loaded = new ArrayList<>();
+            Set<String> names = indexNames();
+            for (String name : names) {
+                try {
+                    loaded.add(new Pack(Utils.join(Repository.PACKS, name)));
+                } catch (NoSuchFileException excp) {
+                    // Replaced by a pack run meanwhile; see rescan
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            }
+            loadedNames = names;
+            packs = loaded;
+        }
+        return packs;
+    }
+
+    /** Drops the loaded packs, so that they are listed again on next use.
+     *  Called by Daemon when another process changed the pack directory. */
+    static synchronized void forget() {
+        packs = null;
+    }
+
+    /** Drops the loaded packs if the index files in the pack directory
+     *  changed since they were listed, as they do when pack, which holds
+     *  only the index lock, runs while this process reads objects.  Returns
+     *  true if they did, so that a lookup that failed is worth one more
+     *  try. */
+    static synchronized boolean rescan() {
+        if (packs != null && indexNames().equals(loadedNames)) {
+            return false;
+        }
+        packs = null;
+        return true;
+    }
+
+    private static Set<String> indexNames() {
+        Set<String> result = new HashSet<>();
+        List<String> names = Utils.plainFilenamesIn(Repository.PACKS);
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(IDX_SUFFIX)) {
+                    result.add(name);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the entry for object SHA in any pack, or null. */
+    static Entry find(String sha) {
+        if (sha == null || sha.length() != Utils.UID_LENGTH) {
+            return null;
+        }
+        Entry e = lookupAll(sha);
+        if (e == null && rescan()) {
+            e = lookupAll(sha);
+        }
+        return e;
+    }
+
+    private static Entry lookupAll(String sha) {
+        for (Pack p : all()) {
+            Entry e = p.lookup(sha);
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    static boolean contains(String sha) {
+        return find(sha) != null;
+    }
+
+    /** Opens the stored form of object SHA, or returns null if no pack
+     *  holds it.  Deltas are resolved, so the result always has the type
+     *  the object was packed as. */
+    static InputStream open(String sha) throws IOException {
+        try {
+            InputStream in = openIn(sha);
+            if (in != null || !rescan()) {
+                return in;
+            }
+        } catch (NoSuchFileException excp) {
+            // The pack was replaced meanwhile
+            if (!rescan()) {
+                throw excp;
+            }
+        }
+        return openIn(sha);
+    }
+
+    private static InputStream openIn(String sha) throws IOException {
+        for (Pack p : all()) {
+            Entry e = p.lookup(sha);
+            if (e != null) {
+                InputStream in = new BufferedInputStream(p.openEntry(e), Blob.CHUNK_SIZE);
+                in.mark(ObjectStore.HEADER_SIZE);
+                ObjectStore.Header header = ObjectStore.parseHeader(in.readNBytes(ObjectStore.HEADER_SIZE));
+                if (header == null || header.type != ObjectStore.DELTA) {
+                    in.reset();
+                    return in;
+                }
+                byte[] contents = resolveDelta(new DataInputStream(header.codec.wrap(in)));
+                ByteArrayOutputStream stored = new ByteArrayOutputStream();
+                ObjectStore.writeHeader(stored, ObjectStore.BLOB, ObjectStore.Codec.NONE, contents.length);
+                stored.write(contents);
+                return new ByteArrayInputStream(stored.toByteArray());
+            }
+        }
+        return null;
+    }
+
+    /** Returns where the contents of blob SHA lie unencoded in a pack, or
+     *  null if no pack holds it that way. */
+    static ObjectStore.Region region(String sha) throws IllegalArgumentException {
+        try {
+            try {
+                if (lookupAll(sha) != null || !rescan()) {
+                    return regionIn(sha);
+                }
+            } catch (NoSuchFileException excp) {
+                // The pack was replaced meanwhile
+                if (!rescan()) {
+                    throw excp;
+                }
+            }
+            return regionIn(sha);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static ObjectStore.Region regionIn(String sha) throws IOException {
+        for (Pack p : all()) {
+            Entry e = p.lookup(sha);
+            if (e != null) {
+                if (e.type != ObjectStore.BLOB) {
+                    return null;
+                }
+                try (FileChannel ch = FileChannel.open(p.packFile.toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer header = ByteBuffer.allocate(ObjectStore.HEADER_SIZE);
+                    while (header.hasRemaining() && ch.read(header, e.offset + header.position()) > 0) {
+                        continue;
+                    }
+                    return ObjectStore.region(p.packFile, e.offset, header.array(), e.length);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns the length of the contents of packed blob SHA, read from
+     *  its header or, for a delta, from the start of the delta, or -1 if no
+     *  pack holds it. */
+    static long blobSize(String sha) throws IOException {
+        try {
+            long size = blobSizeIn(sha);
+            if (size >= 0 || !rescan()) {
+                return size;
+            }
+        } catch (NoSuchFileException excp) {
+            // The pack was replaced meanwhile
+            if (!rescan()) {
+                throw excp;
+            }
+        }
+        return blobSizeIn(sha);
+    }
+
+    private static long blobSizeIn(String sha) throws IOException {
+        for (Pack p : all()) {
+            Entry e = p.lookup(sha);
+            if (e != null) {
+                try (InputStream in = p.openEntry(e)) {
+                    ObjectStore.Header header = ObjectStore.parseHeader(in.readNBytes(ObjectStore.HEADER_SIZE));
+                    if (header == null) {
+                        throw new IOException("bad pack entry " + sha);
+                    }
+                    if (header.type != ObjectStore.DELTA) {
+                        return header.length;
+                    }
+                    try (InputStream body = header.codec.wrap(in)) {
+                        body.skipNBytes(SHA_BYTES);
+                        return Delta.resultSize(body);
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Reads a delta body (the SHA of its base followed by the delta) from
+     *  IN and returns the contents it describes. */
+    private static byte[] resolveDelta(DataInputStream in) throws IOException {
+        byte[] baseSha = new byte[SHA_BYTES];
+        byte[] delta;
+        try (in) {
+            in.readFully(baseSha);
+            delta = in.readAllBytes();
+        }
+        byte[] base = readBlob(Utils.sha1FromBytes(baseSha), Long.MAX_VALUE);
+        if (base == null) {
+            throw new IOException("missing delta base " + Utils.sha1FromBytes(baseSha));
+        }
+        return Delta.apply(base, delta);
+    }
+
+    /** Returns the contents of blob SHA, or null if it is larger than LIMIT
+     *  or stored in a legacy format. */
+    private static byte[] readBlob(String sha, long limit) throws IOException {
+        try (InputStream in = ObjectStore.openStored(Repository.BLOBS, sha)) {
+            if (in == null) {
+                return null;
+            }
+            ObjectStore.Header header = ObjectStore.parseHeader(in.readNBytes(ObjectStore.HEADER_SIZE));
+            if (header == null || header.type != ObjectStore.BLOB || header.length > limit) {
+                return null;
+            }
+            try (InputStream body = header.codec.wrap(in)) {
+                return body.readAllBytes();
+            }
+        }
+    }
+
+    /** Returns the SHAs of all packed objects of TYPE. */
+    static List<String> list(int type) {
+        List<String> result = new ArrayList<>();
+        for (Pack p : all()) {
+            for (int i = 0; i < p.count; i += 1) {
+                Entry e = p.record(i);
+                if (e.type == type) {
+                    result.add(e.sha);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Binary searches this pack's index for SHA. */
+    private Entry lookup(String sha) {
+        byte[] key = Utils.sha1ToBytes(sha);
+        int bucket = key[0] & 0xff;
+        int lo = bucket == 0 ? 0 : idx.getInt(FANOUT_OFFSET + (bucket - 1) * 4);
+        int hi = idx.getInt(FANOUT_OFFSET + bucket * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, key);
+            if (cmp == 0) {
+                return record(mid);
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return null;
+    }
+
+    /** Compares the SHA of record I with KEY. */
+    private int compareAt(int i, byte[] key) {
+        int base = RECORDS_OFFSET + i * RECORD_SIZE;
+        for (int k = 0; k < SHA_BYTES; k += 1) {
+            int a = idx.get(base + k) & 0xff, b = key[k] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private Entry record(int i) {
+        int base = RECORDS_OFFSET + i * RECORD_SIZE;
+        byte[] sha = new byte[SHA_BYTES];
+        for (int k = 0; k < SHA_BYTES; k += 1) {
+            sha[k] = idx.get(base + k);
+        }
+        return new Entry(Utils.sha1FromBytes(sha), idx.get(base + SHA_BYTES),
+                idx.getLong(base + SHA_BYTES + 1), idx.getLong(base + SHA_BYTES + 9));
+    }
+
+    /** Returns a stream over the stored bytes of entry E. */
+    private InputStream openEntry(Entry e) throws IOException {
+        FileChannel ch = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+        return new InputStream() {
+            private long pos = e.offset;
+            private final long end = e.offset + e.length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (pos >= end) {
+                    return -1;
+                }
+                len = (int) Math.min(len, end - pos);
+                int n = ch.read(ByteBuffer.wrap(b, off, len), pos);
+                if (n > 0) {
+                    pos += n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                ch.close();
+            }
+        };
+    }
+
+    /* WRITING */
+
+    /** Folds every loose and packed object into a single new pack and
+     *  removes the loose files and old packs.  Blobs are stored as deltas
+     *  against the previous version of the same path when that saves space.
+     *  Returns the number of objects packed. */
+    static int repack() {
+        Repository.PACKS.mkdirs();
+        List<Pack> old = new ArrayList<>(all());
+        File[] dirs = {Repository.COMMITS, Repository.TREES, Repository.BLOBS};
+        int[] types = {ObjectStore.COMMIT, ObjectStore.TREE, ObjectStore.BLOB};
+
+        // Every object to pack, loose ones first, and the loose files to remove
+        Map<String, Integer> objects = new LinkedHashMap<>();
+        List<File> loose = new ArrayList<>();
+        for (int d = 0; d < dirs.length; d += 1) {
+            List<String> names = Utils.plainFilenamesIn(dirs[d]);
+            if (names == null) {
+                continue;
+            }
+            for (String sha : names) {
+                if (sha.length() == Utils.UID_LENGTH) {
+                    objects.putIfAbsent(sha, types[d]);
+                    loose.add(Utils.join(dirs[d], sha));
+                }
+            }
+        }
+        for (Pack p : old) {
+            for (int i = 0; i < p.count; i += 1) {
+                Entry e = p.record(i);
+                objects.putIfAbsent(e.sha, e.type);
+            }
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        try {
+            Map<String, String> bases = planDeltas();
+            File tmpPack = File.createTempFile("pack", ".tmp", Repository.PACKS);
+            try (CountingOutputStream out = new CountingOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpPack.toPath()), Blob.CHUNK_SIZE))) {
+                for (Map.Entry<String, Integer> o : objects.entrySet()) {
+                    String sha = o.getKey();
+                    int type = o.getValue();
+                    long start = out.count;
+                    byte[] delta = null;
+                    if (bases.containsKey(sha)) {
+                        delta = tryDelta(sha, bases.get(sha));
+                    }
+                    if (delta != null) {
+                        ObjectStore.encode(out, ObjectStore.DELTA, new ByteArrayInputStream(delta), delta.length);
+                    } else {
+                        ObjectStore.copyStored(dirs[type - 1], sha, type, out);
+                    }
+                    entries.add(new Entry(sha, type, start, out.count - start));
+                }
+            }
+
+            Collections.sort(entries, (a, b) -> a.sha.compareTo(b.sha));
+            StringBuilder names = new StringBuilder();
+            for (Entry e : entries) {
+                names.append(e.sha);
+            }
+            String id = Utils.sha1(names.toString());
+            File packFile = Utils.join(Repository.PACKS, "pack-" + id + PACK_SUFFIX);
+            File idxFile = Utils.join(Repository.PACKS, "pack-" + id + IDX_SUFFIX);
+            File tmpIdx = File.createTempFile("idx", ".tmp", Repository.PACKS);
+            writeIndex(tmpIdx, entries);
+
+            // The pack must be in place before its index makes it visible
+            Files.move(tmpPack.toPath(), packFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpIdx.toPath(), idxFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            for (Pack p : old) {
+                if (!p.idxFile.equals(idxFile)) {
+                    Files.deleteIfExists(p.idxFile.toPath());
+                    Files.deleteIfExists(p.packFile.toPath());
+                }
+            }
+            for (File f : loose) {
+                Files.deleteIfExists(f.toPath());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        forget();
+        return entries.size();
+    }
+
+    /** Returns the delta body (base SHA followed by the delta) that
+     *  rebuilds blob SHA from blob BASE, or null if the blobs are too large
+     *  or the delta would not be much smaller than the blob. */
+    private static byte[] tryDelta(String sha, String base) throws IOException {
+        byte[] target = readBlob(sha, DELTA_SIZE_LIMIT);
+        if (target == null) {
+            return null;
+        }
+        byte[] source = readBlob(base, DELTA_SIZE_LIMIT);
+        if (source == null) {
+            return null;
+        }
+        byte[] delta = Delta.create(source, target);
+        if (SHA_BYTES + delta.length > target.length / 2) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(Utils.sha1ToBytes(base));
+        body.write(delta);
+        return body.toByteArray();
+    }
+
+    /** Picks a delta base for blobs, walking history from the branch heads
+     *  and using the previous version of the same path.  A blob only takes a
+     *  base that was seen before it, which keeps chains acyclic, and chains
+     *  are cut at MAX_DELTA_DEPTH. */
+    private static Map<String, String> planDeltas() {
+        Map<String, String> bases = new HashMap<>();
+        Map<String, Integer> depth = new HashMap<>();
+        Map<String, String> lastByPath = new HashMap<>();
+        Set<String> seenTrees = new HashSet<>();
+        for (Commit c : historyOrder()) {
+            if (c.getTree() == null || !seenTrees.add(c.getTree())) {
+                continue;
+            }
+            for (TreeEntry e : Tree.files(c.getTree()).values()) {
+                String blob = e.getHash();
+                String previous = lastByPath.put(e.getPath(), blob);
+                if (depth.containsKey(blob)) {
+                    continue;
+                }
+                int d = 0;
+                if (previous != null && depth.get(previous) < MAX_DELTA_DEPTH) {
+                    bases.put(blob, previous);
+                    d = depth.get(previous) + 1;
+                }
+                depth.put(blob, d);
+            }
+        }
+        return bases;
+    }
+
+    /** Returns every commit, those reachable from the branch heads first in
+     *  breadth-first order, so newer versions come before older ones. */
+    private static List<Commit> historyOrder() {
+        Map<String, Commit> order = new LinkedHashMap<>();
+        Deque<String> queue = new ArrayDeque<>();
+        List<String> branches = Utils.plainFilenamesIn(Repository.BRANCH);
+        if (branches != null) {
+            for (String b : branches) {
+                queue.add(Utils.readContentsAsString(Utils.join(Repository.BRANCH, b)));
+            }
+        }
+        while (!queue.isEmpty()) {
+            String sha = queue.poll();
+            if (order.containsKey(sha)) {
+                continue;
+            }
+            Commit c = ObjectStore.readCommit(sha);
+            order.put(sha, c);
+            if (c.getParent() != null) {
+                queue.add(c.getParent());
+            }
+            if (c.getSecParent() != null) {
+                queue.add(c.getSecParent());
+            }
+        }
+        for (String sha : ObjectStore.listCommits()) {
+            if (!order.containsKey(sha)) {
+                order.put(sha, ObjectStore.readCommit(sha));
+            }
+        }
+        return new ArrayList<>(order.values());
+    }
+
+    /** Writes the index of the sorted ENTRIES to FILE. */
+    private static void writeIndex(File file, List<Entry> entries) throws IOException {
+        int[] fanout = new int[256];
+        for (Entry e : entries) {
+            fanout[Integer.parseInt(e.sha.substring(0, 2), 16)] += 1;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+            out.writeBytes("GLIX");
+            out.writeInt(IDX_VERSION);
+            out.writeInt(entries.size());
+            int total = 0;
+            for (int i = 0; i < 256; i += 1) {
+                total += fanout[i];
+                out.writeInt(total);
+            }
+            for (Entry e : entries) {
+                out.write(Utils.sha1ToBytes(e.sha));
+                out.writeByte(e.type);
+                out.writeLong(e.offset);
+                out.writeLong(e.length);
+            }
+        }
+    }
+
+    /** An OutputStream that counts the bytes written through it. */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** Finds the files that were renamed or copied between two versions of a
+ *  tree, for merge and diff.
+ *
+ *  A removed file and an added file with the same blob hash are paired
+ *  first, without reading them.  The files left are compared by MinHash:
+ *  each file is cut into chunks (its lines, split further every
+ *  CHUNK_SIZE bytes), and the SKETCH_SIZE smallest chunk hashes make its
+ *  sketch.  Among the smallest hashes of the union of two sketches, the
+ *  share found in both estimates the share of chunks the files have in
+ *  common.  Pairs scoring at least the rename threshold, read from the
+ *  gitlet.renameThreshold system property or the GITLET_RENAME_THRESHOLD
+ *  environment variable in percent (50 by default), are renames, best
+ *  first.  When there are more candidate pairs than the rename limit,
+ *  read from gitlet.renameLimit or GITLET_RENAME_LIMIT (1000000 by
+ *  default), only the exact matches are found, so that the time stays
+ *  bounded on large trees.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class Renames {
+
+    private static final int SKETCH_SIZE = 64;
+    private static final int CHUNK_SIZE = 64;
+    /** Parameters of the FNV-1a hash of a chunk. */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** A file added as a rename or a copy of another. */
+    static class Pair {
+        final String from;
+        final String to;
+        /** Similarity in percent. */
+        final int score;
+        /** True if FROM is still there. */
+        final boolean copy;
+
+        Pair(String from, String to, int score, boolean copy) {
+            this.from = from;
+            this.to = to;
+            this.score = score;
+            this.copy = copy;
+        }
+    }
+
+    /** Returns the renames of the REMOVED files into the ADDED files, and,
+     *  from the files in SOURCES that are still there, the copies into the
+     *  other added files.  Each map goes from path to blob hash.  Every
+     *  added and removed file is in at most one pair. */
+    static List<Pair> detect(Map<String, String> removed, Map<String, String> added,
+                             Map<String, String> sources) throws IllegalArgumentException {
+        List<Pair> result = new ArrayList<>();
+        Map<String, String> from = new TreeMap<>(removed);
+        Map<String, String> to = new TreeMap<>(added);
+        exact(from, to, false, result);
+        exact(sources, to, true, result);
+        if (to.isEmpty() || from.isEmpty() && sources.isEmpty()) {
+            return result;
+        }
+        long pairs = (long) (from.size() + sources.size()) * to.size();
+        if (pairs > setting("gitlet.renameLimit", "GITLET_RENAME_LIMIT", 1000000)) {
+            return result;
+        }
+        new Renames().inexact(from, sources, to, result);
+        return result;
+    }
+
+    /** Pairs the files of FROM with the files of TO that have the same blob
+     *  hash, preferring those with the same name, and removes the paired
+     *  files of TO, and of FROM unless they are COPY sources. */
+    private static void exact(Map<String, String> from, Map<String, String> to, boolean copy, List<Pair> out) {
+        Map<String, List<String>> byHash = new HashMap<>();
+        for (Map.Entry<String, String> e : to.entrySet()) {
+            byHash.computeIfAbsent(e.getValue(), h -> new ArrayList<>()).add(e.getKey());
+        }
+        for (String path : new ArrayList<>(from.keySet())) {
+            List<String> same = byHash.get(from.get(path));
+            if (same == null || same.isEmpty()) {
+                continue;
+            }
+            String best = same.get(0);
+            for (String candidate : same) {
+                if (baseName(candidate).equals(baseName(path))) {
+                    best = candidate;
+                    break;
+                }
+            }
+            same.remove(best);
+            to.remove(best);
+            if (!copy) {
+                from.remove(path);
+            }
+            out.add(new Pair(path, best, 100, copy));
+            if (to.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /** Sketches of the blobs compared so far, by hash. */
+    private final Map<String, long[]> sketches = new HashMap<>();
+    /** Sizes of the blobs compared so far, by hash. */
+    private final Map<String, Long> sizes = new HashMap<>();
+
+    /** Pairs the files left in TO with similar files of FROM, as renames,
+     *  or of SOURCES, as copies. */
+    private void inexact(Map<String, String> from, Map<String, String> sources, Map<String, String> to,
+                         List<Pair> out) {
+        int threshold = (int) setting("gitlet.renameThreshold", "GITLET_RENAME_THRESHOLD", 50);
+        List<Pair> candidates = new ArrayList<>();
+        for (Map.Entry<String, String> t : to.entrySet()) {
+            for (boolean copy : new boolean[] {false, true}) {
+                for (Map.Entry<String, String> f : (copy ? sources : from).entrySet()) {
+                    int score = score(f.getValue(), t.getValue(), threshold);
+                    if (score >= threshold) {
+                        candidates.add(new Pair(f.getKey(), t.getKey(), score, copy));
+                    }
+                }
+            }
+        }
+        // Best first; renames before copies, then by name, for stable results
+        candidates.sort((a, b) -> a.score != b.score ? b.score - a.score
+                : a.copy != b.copy ? (a.copy ? 1 : -1)
+                : !a.to.equals(b.to) ? a.to.compareTo(b.to) : a.from.compareTo(b.from));
+        Set<String> used = new HashSet<>();
+        for (Pair p : candidates) {
+            if (used.contains(p.to) || !p.copy && used.contains(p.from)) {
+                continue;
+            }
+            used.add(p.to);
+            if (!p.copy) {
+                used.add(p.from);
+            }
+            out.add(p);
+        }
+    }
+
+    /** Returns the similarity of blobs A and B in percent, or 0 if their
+     *  sizes alone keep it under THRESHOLD. */
+    private int score(String a, String b, int threshold) {
+        long sizeA = size(a), sizeB = size(b);
+        if (Math.min(sizeA, sizeB) * 100 < threshold * Math.max(sizeA, sizeB)) {
+            return 0;
+        }
+        long[] x = sketch(a), y = sketch(b);
+        int i = 0, j = 0, seen = 0, common = 0;
+        while (seen < SKETCH_SIZE && (i < x.length || j < y.length)) {
+            if (j == y.length || i < x.length && x[i] < y[j]) {
+                i += 1;
+            } else if (i == x.length || y[j] < x[i]) {
+                j += 1;
+            } else {
+                common += 1;
+                i += 1;
+                j += 1;
+            }
+            seen += 1;
+        }
+        return seen == 0 ? 0 : 100 * common / seen;
+    }
+
+    /** Returns the length of blob HASH, read from its header where it has
+     *  one, so that pairs of very different sizes are never read. */
+    private long size(String hash) {
+        Long size = sizes.get(hash);
+        if (size == null) {
+            size = ObjectStore.blobSize(hash);
+            if (size < 0) {
+                sketch(hash);
+                return sizes.get(hash);
+            }
+            sizes.put(hash, size);
+        }
+        return size;
+    }
+
+    /** Returns the SKETCH_SIZE smallest distinct chunk hashes of blob HASH,
+     *  in increasing order. */
+    private long[] sketch(String hash) {
+        long[] result = sketches.get(hash);
+        if (result != null) {
+            return result;
+        }
+        ByteBuffer contents = Blob.map(hash);
+        int n = contents.limit();
+        long[] chunks = new long[n / CHUNK_SIZE + 16];
+        int count = 0;
+        long h = FNV_OFFSET;
+        int length = 0;
+        for (int i = 0; i < n; i += 1) {
+            byte c = contents.get(i);
+            h = (h ^ (c & 0xff)) * FNV_PRIME;
+            length += 1;
+            if (c == '\n' || length == CHUNK_SIZE || i == n - 1) {
+                if (count == chunks.length) {
+                    chunks = Arrays.copyOf(chunks, 2 * count);
+                }
+                chunks[count] = mix(h);
+                count += 1;
+                h = FNV_OFFSET;
+                length = 0;
+            }
+        }
+        Arrays.sort(chunks, 0, count);
+        result = new long[Math.min(count, SKETCH_SIZE)];
+        int k = 0;
+        for (int i = 0; i < count && k < result.length; i += 1) {
+            if (i == 0 || chunks[i] != chunks[i - 1]) {
+                result[k] = chunks[i];
+                k += 1;
+            }
+        }
+        result = Arrays.copyOf(result, k);
+        sketches.put(hash, result);
+        sizes.put(hash, (long) n);
+        return result;
+    }
+
+    /** Spreads the bits of H, so that the smallest hashes are a fair
+     *  sample of the chunks. */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /** Returns the setting read from the system property PROPERTY or the
+     *  environment variable ENV, or DEFAULTVALUE. */
+    private static long setting(String property, String env, long defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            value = System.getenv(env);
+        }
+        if (value != null) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                // Fall back to the default below
+            }
+        }
+        return defaultValue;
+    }
+}
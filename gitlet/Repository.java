@@ -3,6 +3,14 @@ package gitlet;
 import jdk.jshell.execution.Util;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.server.UID;
 import java.util.*;
 import java.text.SimpleDateFormat;
@@ -29,14 +37,32 @@ public class Repository {
     public static final File TREES = Utils.join(OBJs, "trees");
     /** The .gitlet/objects/blobs directory. In which blobs are stored */
     public static final File BLOBS = Utils.join(OBJs, "blobs");
+    /** The .gitlet/objects/pack directory. In which pack files and their indexes are stored */
+    public static final File PACKS = Utils.join(OBJs, "pack");
     /** The head pointer file */
     public static final File HEAD = Utils.join(GITLET_DIR, "HEAD");
     /** Staging Area file */
     public static final File INDEX = Utils.join(GITLET_DIR, "index");
+    /** The commit-graph file, see CommitGraph */
+    public static final File COMMIT_GRAPH = Utils.join(GITLET_DIR, "commit-graph");
+    /** The commits added to the commit-graph since it was written, see DerivedLog */
+    public static final File COMMIT_GRAPH_LOG = Utils.join(GITLET_DIR, "commit-graph.log");
+    /** The reachability bitmaps file, see Bitmaps */
+    public static final File BITMAPS = Utils.join(GITLET_DIR, "bitmaps");
+    /** The commit message index file, see MessageIndex */
+    public static final File MESSAGE_INDEX = Utils.join(GITLET_DIR, "message-index");
+    /** The postings added to the message index since it was written, see DerivedLog */
+    public static final File MESSAGE_INDEX_LOG = Utils.join(GITLET_DIR, "message-index.log");
+    /** The commit id index file, see CommitIndex */
+    public static final File COMMIT_INDEX = Utils.join(GITLET_DIR, "commit-index");
+    /** The ids added to the commit id index since it was written, see DerivedLog */
+    public static final File COMMIT_INDEX_LOG = Utils.join(GITLET_DIR, "commit-index.log");
     /** The head pointer file */
     public static final File BRANCH = Utils.join(GITLET_DIR, "branches");
     private static StagingArea st;
     private static boolean conflict = false;
+    /** Files written and deleted by the last checkoutTree. */
+    private static int filesWritten, filesDeleted;
 
 
     public Repository() {}
@@ -51,6 +77,16 @@ public class Repository {
         return false;
     }
 
+    /** Clears the state left by the previous command.  Called by Daemon,
+     *  which runs many commands in one process. */
+    static void resetState()
+    {
+        st = null;
+        conflict = false;
+        filesWritten = 0;
+        filesDeleted = 0;
+    }
+
     // Check the existence of .gitlet Directory
     private static boolean initializedGitlet()
     {
@@ -73,6 +109,7 @@ public class Repository {
         COMMITS.mkdir();
         TREES.mkdir();
         BLOBS.mkdir();
+        PACKS.mkdir();
         BRANCH.mkdir();
 
         // Define an init commit and save it to hard disk
@@ -80,19 +117,25 @@ public class Repository {
         try {
             // Writing Commit as object file
             String SHA1 = initialCommit.hashCommitObject();
-            File SHA1Commit = Utils.join(COMMITS, SHA1);
-            Utils.writeObject(SHA1Commit, initialCommit);
+            ObjectStore.writeCommit(initialCommit);
 
             // Writing head and branch files
             File branchFile = Utils.join(BRANCH, initialCommit.getBranch());
-            Utils.writeContents(HEAD, initialCommit.getBranch());
-            Utils.writeContents(branchFile, SHA1);
+            LockFile.write(HEAD, initialCommit.getBranch());
+            LockFile.write(branchFile, SHA1);
+            CommitGraph.update();
+            Bitmaps.update();
+            MessageIndex.add(initialCommit);
         } catch (IllegalArgumentException e){
             Utils.message("An error occurred, please DELETE .gitlet directory and try again!");
         }
     }
 
-    public static void add(String filePath) {
+    /** Stages the files named by OPERANDS, which may be file names, "." for
+     *  every file in the working directory, or glob patterns.  HEAD's tree is
+     *  read once, the files are hashed in one batch and the index is written
+     *  once. */
+    public static void add(String... operands) {
         // Check the existence of .gitlet Directory
         if (!initializedGitlet())
             return;
@@ -101,32 +144,106 @@ public class Repository {
         if (INDEX.exists())
         {
             try {
-                st = Utils.readObject(INDEX, StagingArea.class);
-                // Cleared Stage
-                if (st.iscleared())
-                    st = new StagingArea();
+                st = StagingArea.load();
             } catch (IllegalArgumentException e){
                 System.out.println(e.getMessage());
+                return;
             }
         }
         else
             st = new StagingArea();
 
-        // Check the existence of the file, push it to Staging Area, and save Staging Area to hard disk
-        if (!Utils.join(Repository.CWD, filePath).exists())
+        // Check the existence of the files, push them to Staging Area, and save Staging Area to hard disk
+        List<String> paths = expandOperands(operands, workingFileNames());
+        if (paths == null)
         {
             Utils.message("File does not exist.");
             return;
         }
 
         try {
-            st.addFile(filePath);
-            Utils.writeObject(INDEX, st);
+            st.addFiles(paths, StagingArea.headFiles());
+            st.save();
         } catch (Exception e) {
             System.out.println("Exception err: " + e);
         }
     }
 
+    /** Returns the paths of the working files, relative to the working
+     *  directory and separated by '/', in lexicographic order.  The .gitlet
+     *  directory is skipped. */
+    private static List<String> workingFileNames() {
+        List<String> result = new ArrayList<>();
+        listFiles(CWD, "", result);
+        Collections.sort(result);
+        return result;
+    }
+
+    private static void listFiles(File dir, String prefix, List<String> out) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isFile()) {
+                out.add(prefix + f.getName());
+            } else if (f.isDirectory() && !f.equals(GITLET_DIR)) {
+                listFiles(f, prefix + f.getName() + "/", out);
+            }
+        }
+    }
+
+    /** Deletes the working file PATH, then any directories it leaves empty. */
+    static boolean deleteWorkingFile(String path) {
+        File f = Utils.join(CWD, path);
+        if (!GITLET_DIR.isDirectory() || f.isDirectory() || !f.delete()) {
+            return false;
+        }
+        for (File d = f.getParentFile(); !d.equals(CWD) && d.delete(); d = d.getParentFile()) {
+            // Keep deleting while the parent directory is empty
+        }
+        return true;
+    }
+
+    /** Returns the paths among CANDIDATES named by OPERANDS, in order and
+     *  without duplicates.  An operand is "." for every candidate, a glob
+     *  pattern, or a plain name, which must itself be a candidate.  Returns
+     *  null if an operand names nothing. */
+    private static List<String> expandOperands(String[] operands, Collection<String> candidates) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String operand : operands) {
+            if (operand.equals(".")) {
+                result.addAll(candidates);
+            } else if (isGlob(operand)) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + operand);
+                boolean matched = false;
+                for (String c : candidates) {
+                    if (matcher.matches(Paths.get(c))) {
+                        result.add(c);
+                        matched = true;
+                    }
+                }
+                if (!matched) {
+                    return null;
+                }
+            } else if (candidates.contains(operand)) {
+                result.add(operand);
+            } else {
+                return null;
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static boolean isGlob(String operand) {
+        for (char c : operand.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static void commit(String message) {
         // Check the existence of .gitlet Directory
         if (!initializedGitlet())
@@ -160,7 +277,7 @@ public class Repository {
         // Nothing to be committed if Staging Area was cleared
         StagingArea stage;
         try {
-            stage = Utils.readObject(Repository.INDEX, StagingArea.class);
+            stage = StagingArea.load();
         } catch (IllegalArgumentException e) {
             Utils.message("No changes added to the commit.");
             return;
@@ -172,138 +289,120 @@ public class Repository {
             return;
         }
 
-        HashMap<String, StagedFile> stagedFiles = stage.getStagedFiles();
-        Tree commitTree = new Tree();
-        TreeEntry entry = new TreeEntry();
-
-        // Getting previous commit tree and storing it in the current commit tree
-        File f = Utils.join(COMMITS, previousCommit);
-        Commit parent = Utils.readObject(f, Commit.class);
-        if (parent.getParent() != null)
-        {
-            File t = Utils.join(TREES, parent.getTree());
-            Tree parentTree = Utils.readObject(t, Tree.class);
-            for (TreeEntry element : parentTree.getTree().values())
-                commitTree.addBlob(element.getPath(), element);
+        // Staged files change the parent's tree; untouched directories keep their subtrees
+        Map<String, String> changes = new HashMap<>();
+        for (HashMap.Entry<String, StagedFile> e : stage.getStagedFiles().entrySet()) {
+            // A null entry is a staged removed file (File that was in the directory in HEAD Commit and was deleted by user)
+            // Blob contents were already stored by add
+            changes.put(e.getKey(), e.getValue() == null ? null : e.getValue().getHash());
         }
 
-        // Storing Staged files in commit tree
-        for (HashMap.Entry<String, StagedFile> e : stagedFiles.entrySet()) {
-            // Staged Removed File (File that was in the directory in HEAD Commit and was deleted by user)
-            if (e.getValue() == null)
-            {
-                if (commitTree.getTree().containsKey(e.getKey()))
-                    commitTree.removeBlob(e.getKey());
-                continue;
-            }
-
-            entry.setPath(e.getKey());
-            entry.setHash(e.getValue().getBlob().getHash());
-            commitTree.addBlob(entry.getPath(), entry);
-
-            // Writing blobs files to hard disk
-            String SHA1 = e.getValue().getBlob().getHash();
-            File SHA1Blob = Utils.join(BLOBS, SHA1);
-            Utils.writeObject(SHA1Blob, e.getValue().getBlob());
-        }
-
-        // Writing Tree as a file
-        String treeSHA1 = commitTree.hashTreeObject();
-        File treeFile = Utils.join(TREES, treeSHA1);
-        Utils.writeObject(treeFile, commitTree);
-        commit.setTree(treeSHA1);
+        // Writing the changed trees as files
+        Commit parent = ObjectStore.readCommit(previousCommit);
+        commit.setTree(Tree.update(parent.getTree(), changes));
 
         // Writing Commit as a file
         String SHA1 = commit.hashCommitObject();
-        File SHA1Commit = Utils.join(COMMITS, SHA1);
-        Utils.writeObject(SHA1Commit, commit);
+        ObjectStore.writeCommit(commit);
 
         // Updating head and branch files
         File branchFile = Utils.join(BRANCH, commit.getBranch());
-        Utils.writeContents(HEAD, commit.getBranch());
-        Utils.writeContents(branchFile, SHA1);
+        LockFile.write(HEAD, commit.getBranch());
+        LockFile.compareAndSet(branchFile, previousCommit, SHA1);
+        CommitGraph.update();
+        Bitmaps.update();
+        MessageIndex.add(commit);
 
         // Clear Staging Area
         stage.clearStage();
     }
 
-    public static void rm(String filePath) {
+    /** Unstages or removes the files named by OPERANDS, which are expanded
+     *  as for add against the staged and tracked files, so that "." and
+     *  glob patterns never name untracked files.  The index is written
+     *  once. */
+    public static void rm(String... operands) {
         // Check the existence of .gitlet Directory
         if (!initializedGitlet())
             return;
 
-        // Is file staged
         StagingArea stage;
         try {
-            stage = Utils.readObject(Repository.INDEX, StagingArea.class);
+            stage = StagingArea.load();
         } catch (IllegalArgumentException e) {
             // INDEX file is not existed, which means there is no commits except initial commit
+            stage = new StagingArea();
+        }
+
+        Map<String, TreeEntry> treeMap;
+        try {
+            treeMap = StagingArea.headFiles();
+        } catch (IllegalArgumentException e) {
             Utils.message("No reason to remove the file.");
             return;
         }
-        // INDEX file exist and there are staged files
+
+        Set<String> candidates = new TreeSet<>(treeMap.keySet());
         if (!stage.iscleared())
+            candidates.addAll(stage.getStagedFiles().keySet());
+        // Plain names are kept even if they name nothing, and reported below
+        for (String operand : operands) {
+            if (!operand.equals(".") && !isGlob(operand))
+                candidates.add(operand);
+        }
+        List<String> paths = expandOperands(operands, candidates);
+        if (paths == null)
         {
-            if (stage.getStagedFiles().containsKey(filePath))
+            Utils.message("No reason to remove the file.");
+            return;
+        }
+
+        boolean changed = false;
+        for (String filePath : paths) {
+            // Is file staged
+            if (!stage.iscleared() && stage.getStagedFiles().containsKey(filePath))
             {
                 // Check if file was staged as a removed one (Was in the HEAD commit and removed from Working Dir)
                 StagedFile sFile = stage.getStagedFiles().get(filePath);
-                if (sFile == null) return;
+                if (sFile == null) continue;
 
                 stage.removeFile(filePath);
-                Utils.writeObject(Repository.INDEX, stage);
+                changed = true;
+                continue;
             }
-            return;
-        }
-        else if (stage.iscleared()){
-            stage = new StagingArea();
-        }
-
-        try {
-            // Get Tree
-            String currentBranch = Utils.readContentsAsString(HEAD);
-            File branch = Utils.join(BRANCH, currentBranch);
-            String commitHash = Utils.readContentsAsString(branch);
-
-            File head = Utils.join(COMMITS, commitHash);
-            Commit c = Utils.readObject(head, Commit.class);
-
-            File treePath = Utils.join(TREES, c.getTree());
-            Tree tree = Utils.readObject(treePath, Tree.class);
-            HashMap<String, TreeEntry> treeMap = tree.getTree();
 
             // Check if HEAD commit contains the file
-            if (treeMap.containsKey(filePath))
+            if (!treeMap.containsKey(filePath))
             {
-                // Stage the removed file
-                stage.stageRemovedFile(filePath);
-                try {
-                    Utils.writeObject(INDEX, stage);
-                } catch (IllegalArgumentException e) {
-                    System.out.println("INDEX file error: " + e);
-                }
+                // File is neither Staged nor Tracked by the HEAD Commit
+                Utils.message("No reason to remove the file.");
+                continue;
+            }
 
-                try {
-                    File f = new File(filePath);
-                    if (f.exists())
-                    {
-                        // Delete file from hard Disk
-                        boolean flag = Utils.restrictedDelete(filePath);
-                        if (!flag)
-                            System.out.println("Unknown Error!!!");
-                    }
-                } catch (IllegalArgumentException e) {
-                    System.out.println("Deletion error: " + e);
+            // Stage the removed file
+            stage.stageRemovedFile(filePath);
+            changed = true;
+            try {
+                File f = new File(filePath);
+                if (f.exists())
+                {
+                    // Delete file from hard Disk
+                    boolean flag = deleteWorkingFile(filePath);
+                    if (!flag)
+                        System.out.println("Unknown Error!!!");
                 }
-
-                return;
+            } catch (IllegalArgumentException e) {
+                System.out.println("Deletion error: " + e);
             }
-        } catch (IllegalArgumentException e) {
-            Utils.message("No reason to remove the file.");
         }
 
-        // File is neither Staged nor Tracked by the HEAD Commit
-        Utils.message("No reason to remove the file.");
+        if (changed) {
+            try {
+                stage.save();
+            } catch (IllegalArgumentException e) {
+                System.out.println("INDEX file error: " + e);
+            }
+        }
     }
 
     /** TODO: For merge commits (those that have two parent commits), add a line just below the first, as in
@@ -317,84 +416,113 @@ public class Repository {
      * The first parent is the branch you were on when you did the merge; the second is that of the merged-in branch.
      * */
 
-    public static void log() {
+    /** Prints the first-parent history of the current branch, applying the
+     *  log OPTIONS described in LogPrinter. */
+    public static void log(String... options) {
         // Check the existence of .gitlet Directory
         if (!initializedGitlet())
             return;
 
+        LogPrinter printer;
+        try {
+            printer = LogPrinter.parse(options);
+        } catch (IllegalArgumentException e) {
+            Utils.message("Incorrect operands.");
+            return;
+        }
         if (HEAD.exists())
         {
             String currentBranch = Utils.readContentsAsString(HEAD);
             File branch = Utils.join(BRANCH, currentBranch);
             String SHA = Utils.readContentsAsString(branch);
-            File commitSHA1 = Utils.join(COMMITS, SHA);
             try {
-                Commit currentCommit = Utils.readObject(commitSHA1, Commit.class);
-                while (true)
+                // Walk the commit graph so that commits outside the limit
+                // or the date range are never read
+                CommitGraph graph = CommitGraph.get(SHA);
+                int pos = graph.find(SHA);
+                while (pos != CommitGraph.NONE && !printer.done())
                 {
-                    System.out.println("Commit " + SHA);
-                    if (currentCommit.getSecParent() != null)
-                        System.out.println("Merge: " + currentCommit.getParent().substring(0,7) + " " + currentCommit.getSecParent().substring(0,7));
-
-                    System.out.println("Date: " + currentCommit.getTimeStamp());
-                    Utils.message(currentCommit.getMessage());
-                    System.out.println();
-                    if (!currentCommit.getMessage().equals("initial commit"))
-                        Utils.message("===");
-                    SHA = currentCommit.getParent();
-
-                    if (SHA == null) break;
-                    commitSHA1 = Utils.join(COMMITS, SHA);
-                    currentCommit = Utils.readObject(commitSHA1, Commit.class);
+                    if (printer.inRange(graph.time(pos))) {
+                        SHA = graph.sha(pos);
+                        Commit currentCommit = ObjectStore.readCommit(SHA);
+                        printer.print(SHA, currentCommit,
+                                !currentCommit.getMessage().equals("initial commit"));
+                    }
+                    pos = graph.parent(pos);
                 }
             } catch (IllegalArgumentException e) {
                 System.out.println("Log Error: " + e.getMessage());
+            } finally {
+                printer.flush();
             }
         }
     }
 
-    public static void global_Log() {
+    /** Prints every stored commit, applying the log OPTIONS described in
+     *  LogPrinter. */
+    public static void global_Log(String... options) {
         // Check the existence of .gitlet Directory
         if (!initializedGitlet())
             return;
 
+        LogPrinter printer;
+        try {
+            printer = LogPrinter.parse(options);
+        } catch (IllegalArgumentException e) {
+            Utils.message("Incorrect operands.");
+            return;
+        }
         if (COMMITS.exists())
         {
-            List<String> l = Utils.plainFilenamesIn(COMMITS);
+            List<String> l = ObjectStore.listCommits();
+            // Commits not reachable from a branch are not in the graph and
+            // are read to learn their time
+            CommitGraph graph = printer.filtersTime() ? CommitGraph.get() : null;
             if (l != null) {
                 for (String SHA: l)
                 {
-                    File commitSHA1 = Utils.join(COMMITS, SHA);
-                    Commit currentCommit = Utils.readObject(commitSHA1, Commit.class);
-                    System.out.println("Commit " + SHA);
-                    System.out.println("Date: " + currentCommit.getTimeStamp());
-                    Utils.message(currentCommit.getMessage());
-                    System.out.println();
-                    Utils.message("===");
+                    if (printer.done())
+                        break;
+                    Commit currentCommit = null;
+                    if (graph != null) {
+                        int pos = graph.find(SHA);
+                        long time;
+                        if (pos != CommitGraph.NONE) {
+                            time = graph.time(pos);
+                        } else {
+                            currentCommit = ObjectStore.readCommit(SHA);
+                            time = CommitGraph.parseTime(currentCommit.getTimeStamp());
+                        }
+                        if (!printer.inRange(time))
+                            continue;
+                    }
+                    if (currentCommit == null)
+                        currentCommit = ObjectStore.readCommit(SHA);
+                    printer.print(SHA, currentCommit, true);
                 }
             }
+            printer.flush();
         }
     }
 
-    public static void find(String message) {
+    /** Prints the ids of the commits whose message is MESSAGE, using the
+     *  message index.  With the option "--word" the commits whose message
+     *  contains the word MESSAGE are printed instead, and with "--prefix"
+     *  those with a word starting with MESSAGE. */
+    public static void find(String option, String message) {
         // Check the existence of .gitlet Directory
         if (!initializedGitlet())
             return;
 
-        if (COMMITS.exists())
-        {
-            List<String> l = Utils.plainFilenamesIn(COMMITS);
-            if (l != null) {
-                for (String SHA: l)
-                {
-                    File commitSHA1 = Utils.join(COMMITS, SHA);
-                    Commit currentCommit = Utils.readObject(commitSHA1, Commit.class);
-                    String commitMessage = currentCommit.getMessage();
-                    if (message.equals(commitMessage))
-                        Utils.message(SHA);
-                }
-            }
-        }
+        List<String> l;
+        if (option == null)
+            l = MessageIndex.exact(message);
+        else if (option.equals("--word"))
+            l = MessageIndex.word(message);
+        else
+            l = MessageIndex.prefix(message);
+        for (String SHA : l)
+            Utils.message(SHA);
     }
 
     private static Map<String, String> Tracked() {
@@ -403,47 +531,46 @@ public class Repository {
         String branch = Utils.readContentsAsString(HEAD);
         File head = Utils.join(BRANCH, branch);
         String commitHash = Utils.readContentsAsString(head);
-        head = Utils.join(COMMITS, commitHash);
-        Commit currentCommit = Utils.readObject(head, Commit.class);
+        Commit currentCommit = ObjectStore.readCommit(commitHash);
 
-        // Fetching the tree of the current commit
-        String t = currentCommit.getTree();
-        File treeHash = null;
-        Tree tree = null;
-        if (t != null) {
-            treeHash = Utils.join(TREES, t);
-            tree = Utils.readObject(treeHash, Tree.class);
+        // Fetching the files of the current commit
+        Map<String, TreeEntry> tree = null;
+        if (currentCommit.getTree() != null) {
+            tree = Tree.files(currentCommit.getTree());
         }
 
         // If current commit is the init commit, we need to create index object(as index object is created with add method)
         try {
-            st = Utils.readObject(INDEX, StagingArea.class);
+            st = StagingArea.load();
         } catch (IllegalArgumentException e) {
             st = new StagingArea();
         }
         HashMap<String, StagedFile> stagedFiles = st.getStagedFiles();
 
-        List<String> l = Utils.plainFilenamesIn(CWD);
+        List<String> l = workingFileNames();
         Map<String, String> workingFiles = new HashMap<>();
-        if (l != null) {
+        {
+            // Hash the working files up front, in parallel where possible
+            List<String> hashes = st.hashAll(l);
+            for (int i = 0; i < l.size(); i += 1)
+                workingFiles.put(l.get(i), hashes.get(i));
+
             // Modified Files
             for (String s: l)
             {
-                File f = new File(s);
-                Blob currentBlob = new Blob(f);
-                workingFiles.put(s, currentBlob.getHash());
+                String currentHash = workingFiles.get(s);
                 TreeEntry entry = null;
                 if (tree != null)
-                    entry = tree.getTree().get(s);
+                    entry = tree.get(s);
 
                 // Tracked in the current commit?
-                if (tree != null && tree.getTree().containsKey(s)) {
+                if (tree != null && tree.containsKey(s)) {
                     // Changed in the working directory?
-                    if ( !entry.getHash().equals( currentBlob.getHash() ) ) {
+                    if ( !entry.getHash().equals( currentHash ) ) {
                         // Staged?
                         if (!st.iscleared() && stagedFiles.containsKey(s)) {
                             // Different content?
-                            if ( !stagedFiles.get(s).getBlob().getHash().equals( currentBlob.getHash() ) )
+                            if ( !stagedFiles.get(s).getHash().equals( currentHash ) )
                                 map.put(s, "(modified)");
                         }
                         else
@@ -466,12 +593,12 @@ public class Repository {
                         // Staged?
                         if (stagedFiles.containsKey(s)) {
                             // Staged for removal, but then re-created without Gitlet’s knowledge.
-                            if (stagedFiles.get(s).getBlob() == null) {
+                            if (stagedFiles.get(s) == null) {
                                 map.put(s, "Untracked");
                             }
                             else {
                                 // Different content?
-                                if ( !stagedFiles.get(s).getBlob().getHash().equals( currentBlob.getHash() ) )
+                                if ( !stagedFiles.get(s).getHash().equals( currentHash ) )
                                     map.put(s, "(modified)");
                             }
                         }
@@ -492,12 +619,16 @@ public class Repository {
 
             if (tree != null) {
                 // Not staged for removal, but tracked in the current commit and deleted from the working directory.
-                for (HashMap.Entry<String, TreeEntry> entry : tree.getTree().entrySet()) {
+                for (Map.Entry<String, TreeEntry> entry : tree.entrySet()) {
                     if ( !workingFiles.containsKey( entry.getKey() ) && ( st.iscleared() || !stagedFiles.containsKey( entry.getKey() ) ) )
                         map.put(entry.getKey(), "(deleted)");
                 }
             }
         }
+
+        // Keep the hashes computed above for the next command
+        st.pruneStats(workingFiles);
+        st.saveStats();
         return map;
     }
 
@@ -530,7 +661,7 @@ public class Repository {
         // Fetching staging area
         if (INDEX.exists())
         {
-            st = Utils.readObject(Repository.INDEX, StagingArea.class);
+            st = StagingArea.load();
             if (!st.iscleared()) {
                 for (HashMap.Entry<String, StagedFile> entry : st.getStagedFiles().entrySet()) {
                     if (entry.getValue() != null)
@@ -587,38 +718,26 @@ public class Repository {
         String commitID = id;
         String fileName = name;
         try {
-            File commitSHA = Utils.join(COMMITS, commitID);
             Commit c;
             try {
-                c = Utils.readObject(commitSHA, Commit.class);
+                c = ObjectStore.readCommit(commitID);
             } catch (IllegalArgumentException e) {
                 Utils.message("No commit with that id exists");
                 return;
             }
-            String commitTree = c.getTree();
-            Tree tree = null;
-            if (commitTree != null) {
-                File treeSHA = Utils.join(TREES, commitTree);
-                tree = Utils.readObject(treeSHA, Tree.class);
-            } else {
-                tree = new Tree();
-            }
-            if (tree.getTree().containsKey(fileName)) {
+            TreeEntry entry = Tree.lookup(c.getTree(), fileName);
+            if (entry != null) {
                 // Remove the file from staging area if it is staged
-                st = Utils.readObject(INDEX, StagingArea.class);
+                st = StagingArea.load();
                 if (!st.iscleared())
                     st.removeFile(fileName);
 
                 // Fetching the content
-                String blobHash = tree.getTree().get(fileName).getHash();
-                File f = Utils.join(BLOBS, blobHash);
-                Blob blob = Utils.readObject(f, Blob.class);
-                String content = blob.getContent();
+                String blobHash = entry.getHash();
 
                 // Overwriting content
                 try {
-                    File path = Utils.join(CWD, fileName);
-                    Utils.writeContents(path, content);
+                    CheckoutWriter.prepare(Collections.singletonMap(fileName, blobHash)).install();
                 } catch (IllegalArgumentException e) {
                     Utils.message("Unknown Error!!!");
                 }
@@ -631,7 +750,7 @@ public class Repository {
         }
     }
 
-    private static void checkoutBranch(String b) {
+    private static void checkoutBranch(String b, boolean verbose) {
         String branch = b;
         String currentBranch = Utils.readContentsAsString(HEAD);
         if (branch.equals(currentBranch)) {
@@ -646,62 +765,114 @@ public class Repository {
             Utils.message("No such branch exists.");
             return;
         }
-        File commitSHA = Utils.join(COMMITS, previousCommit);
-        Commit c = Utils.readObject(commitSHA, Commit.class);
-        String commitTree = c.getTree();
-        Tree tree = null;
-        if (commitTree != null) {
-            File treeSHA = Utils.join(TREES, commitTree);
-            tree = Utils.readObject(treeSHA, Tree.class);
-        } else {
-            tree = new Tree();
-        }
+        Commit c = ObjectStore.readCommit(previousCommit);
+        CheckoutWriter writer = checkoutTree(c);
+        if (writer == null)
+            return;
 
-        List<String> l = Utils.plainFilenamesIn(CWD);
+        // Changing the current branch (HEAD) to the given branch and
+        // clearing the staging area, together with the files
+        writer.setRef(HEAD, branch);
+        writer.clearIndex();
+        if (!install(writer))
+            return;
+        if (verbose)
+            reportCheckout(c);
+    }
 
+    /** Returns a CheckoutWriter that makes the working directory match the
+     *  tree of TARGET when installed.  Only the files that differ between
+     *  the trees of the current commit and TARGET, and the files that differ
+     *  from the current commit in the working directory or staging area, are
+     *  written or deleted; unchanged subtrees are not read, and modified
+     *  files that already match TARGET are left alone.  The caller adds the
+     *  ref and index updates to the writer, so that they are journaled with
+     *  the files.  Returns null, changing nothing, if an untracked file is in
+     *  the way or the files cannot be written. */
+    private static CheckoutWriter checkoutTree(Commit target) {
         Map<String, String> untracked = Tracked();
-        for (String file: l) {
+        for (Map.Entry<String, String> e : untracked.entrySet()) {
             // Checking the existence of untracked files
-            if (untracked.containsKey(file) && untracked.get(file).equals("Untracked") ) {
+            if (e.getValue().equals("Untracked")) {
                 Utils.message("There is an untracked file in the way; delete it, or add and commit it first.");
-                return;
+                return null;
             }
         }
 
-
-        // Deleting tracked files that are not in checked-out branch tree
-        for (String file: l) {
-            if (!tree.getTree().containsKey(file)) {
-                Utils.restrictedDelete(file);
-            }
+        String currentBranch = Utils.readContentsAsString(HEAD);
+        Commit current = ObjectStore.readCommit(Utils.readContentsAsString(Utils.join(BRANCH, currentBranch)));
+        Map<String, String> changed = new TreeMap<>();
+        Tree.diff(current.getTree(), target.getTree(), changed);
+
+        // Files changed in the working directory or staged are restored as
+        // well, unless they already hold the content of TARGET
+        Set<String> dirty = new TreeSet<>(untracked.keySet());
+        if (!st.iscleared())
+            dirty.addAll(st.getStagedFiles().keySet());
+        List<String> present = new ArrayList<>();
+        for (String file : dirty) {
+            if (Utils.join(CWD, file).isFile())
+                present.add(file);
+        }
+        Map<String, String> working = new HashMap<>();
+        List<String> hashes = st.hashAll(present);
+        for (int i = 0; i < present.size(); i += 1)
+            working.put(present.get(i), hashes.get(i));
+        for (String file : dirty) {
+            TreeEntry entry = changed.containsKey(file) ? null : Tree.lookup(target.getTree(), file);
+            String hash = changed.containsKey(file) ? changed.get(file) : entry == null ? null : entry.getHash();
+            if (Objects.equals(hash, working.get(file)))
+                changed.remove(file);
+            else
+                changed.put(file, hash);
         }
 
-        for (HashMap.Entry<String, TreeEntry> entry : tree.getTree().entrySet()) {
-            if (entry.getValue() != null) {
-                try {
-                    // Fetching the content
-                    String blobHash = entry.getValue().getHash();
-                    File f = Utils.join(BLOBS, blobHash);
-                    Blob blob = Utils.readObject(f, Blob.class);
-                    String content = blob.getContent();
-
-                    // Overwriting the content
-                    f = Utils.join(CWD, entry.getKey());
-                    Utils.writeContents(f, content);
+        // Writing the new contents aside first, so that nothing is changed
+        // if any of them cannot be written
+        Map<String, String> writes = new TreeMap<>();
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
+            if (entry.getValue() != null)
+                writes.put(entry.getKey(), entry.getValue());
+        }
+        CheckoutWriter writer;
+        try {
+            writer = CheckoutWriter.prepare(writes);
+        } catch (IllegalArgumentException e) {
+            Utils.message("Unknown Error !!!");
+            return null;
+        }
 
-                } catch (IllegalArgumentException e) {
-                    Utils.message("Unknown Error !!!");
-                }
-            }
+        // Deleting tracked files that are not in checked-out tree
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
+            if (entry.getValue() == null && Utils.join(CWD, entry.getKey()).isFile())
+                writer.delete(entry.getKey());
         }
+        return writer;
+    }
 
-        // Changing the current branch (HEAD) to the given branch.
-        Utils.writeContents(HEAD, branch);
+    /** Installs WRITER, leaving the number of files it wrote and deleted in
+     *  filesWritten and filesDeleted.  Returns false if the files cannot be
+     *  installed. */
+    private static boolean install(CheckoutWriter writer) {
+        filesWritten = 0;
+        filesDeleted = 0;
+        try {
+            writer.install();
+        } catch (IllegalArgumentException e) {
+            Utils.message("Unknown Error !!!");
+            return false;
+        }
+        filesWritten = writer.size();
+        filesDeleted = writer.deleted();
+        return true;
+    }
 
-        // Clearing Staging Area
-        st = Utils.readObject(INDEX, StagingArea.class);
-        st.clearStage();
-        Utils.writeObject(INDEX, st);
+    /** Prints how many files the last checkout of TARGET wrote, deleted
+     *  and left untouched. */
+    private static void reportCheckout(Commit target) {
+        int files = target.getTree() == null ? 0 : Tree.files(target.getTree()).size();
+        Utils.message("Files written: " + filesWritten + ", deleted: " + filesDeleted
+                + ", skipped: " + (files - filesWritten) + ".");
     }
 
     public static void checkout(String[] args) {
@@ -709,7 +880,10 @@ public class Repository {
         if (!initializedGitlet())
             return;
 
-        if (args.length == 3) {
+        if (args.length == 3 && args[1].equals("-v")) {
+            /* java gitlet.Main checkout -v [branch name] */
+            checkoutBranch(args[2], true);
+        } else if (args.length == 3) {
             /* java gitlet.Main checkout -- [file name] */
             String fileName = args[2];
 
@@ -720,32 +894,20 @@ public class Repository {
                     File head = Utils.join(BRANCH, branch);
                     String previousCommit = Utils.readContentsAsString(head);
 
-                    File commitSHA = Utils.join(COMMITS, previousCommit);
-                    Commit c = Utils.readObject(commitSHA, Commit.class);
-                    String commitTree = c.getTree();
-                    Tree tree = null;
-                    if (commitTree != null) {
-                        File treeSHA = Utils.join(TREES, commitTree);
-                        tree = Utils.readObject(treeSHA, Tree.class);
-                    } else {
-                        tree = new Tree();
-                    }
-                    if (tree.getTree().containsKey(fileName)) {
+                    Commit c = ObjectStore.readCommit(previousCommit);
+                    TreeEntry entry = Tree.lookup(c.getTree(), fileName);
+                    if (entry != null) {
                         // Remove the file from staging area if it is staged
-                        st = Utils.readObject(INDEX, StagingArea.class);
+                        st = StagingArea.load();
                         if (!st.iscleared())
                             st.removeFile(fileName);
 
                         // Fetching the content
-                        String blobHash = tree.getTree().get(fileName).getHash();
-                        File f = Utils.join(BLOBS, blobHash);
-                        Blob blob = Utils.readObject(f, Blob.class);
-                        String content = blob.getContent();
+                        String blobHash = entry.getHash();
 
                         // Overwriting content
                         try {
-                            File path = Utils.join(CWD, fileName);
-                            Utils.writeContents(path, content);
+                            CheckoutWriter.prepare(Collections.singletonMap(fileName, blobHash)).install();
                         } catch (IllegalArgumentException e) {
                             Utils.message("Unknown Error!!!");
                         }
@@ -761,11 +923,13 @@ public class Repository {
             }
         } else if (args.length == 4) {
             /* java gitlet.Main checkout [commit id] -- [file name] */
-            checkoutCommitID(args[1], args[3]);
+            String commitID = expandCommitId(args[1], "No commit with that id exists");
+            if (commitID != null)
+                checkoutCommitID(commitID, args[3]);
 
         } else {
             /* java gitlet.Main checkout [branch name] */
-            checkoutBranch(args[1]);
+            checkoutBranch(args[1], false);
         }
     }
 
@@ -787,7 +951,7 @@ public class Repository {
             String currentCommit = Utils.readContentsAsString(f);
 
             f = Utils.join(BRANCH, newBranch);
-            Utils.writeContents(f, currentCommit);
+            LockFile.compareAndSet(f, null, currentCommit);
         } else
             Utils.message("Unknown Error !!!");
     }
@@ -806,8 +970,11 @@ public class Repository {
 
             File path = Utils.join(BRANCH, branch);
             if (path.exists()) {
-                if (!path.delete())
+                try {
+                    LockFile.compareAndSet(path, Utils.readContentsAsString(path), null);
+                } catch (IllegalArgumentException e) {
                     Utils.message("Unknown Error !!!");
+                }
             }
             else
                 Utils.message("A branch with that name does not exist.");
@@ -815,243 +982,369 @@ public class Repository {
             Utils.message("Unknown Error !!!");
     }
 
-    public static void reset(String commitID) {
+    /** Checks out the commit COMMITID and moves the current branch to it.
+     *  If VERBOSE, reports how many files were written and skipped. */
+    public static void reset(String commitID, boolean verbose) {
         // Check the existence of .gitlet Directory
         if (!initializedGitlet())
             return;
 
-        File path = Utils.join(COMMITS, commitID);
-        if (!path.exists()) {
-            Utils.message("No commit with that id exists.");
+        commitID = expandCommitId(commitID, "No commit with that id exists.");
+        if (commitID == null)
             return;
-        }
-        Commit commit = Utils.readObject(path, Commit.class);
-        String commitTree = commit.getTree();
-        Tree tree = null;
-        if (commitTree != null) {
-            File treeSHA = Utils.join(TREES, commitTree);
-            tree = Utils.readObject(treeSHA, Tree.class);
+        Commit commit = ObjectStore.readCommit(commitID);
+        CheckoutWriter writer = checkoutTree(commit);
+        if (writer == null)
+            return;
+
+        // Moving the current branch to the commit, HEAD staying on it, and
+        // clearing the staging area, together with the files
+        String currentBranch = Utils.readContentsAsString(HEAD);
+        writer.setRef(Utils.join(BRANCH, currentBranch), commitID);
+        writer.clearIndex();
+        if (!install(writer))
+            return;
+        if (verbose)
+            reportCheckout(commit);
+    }
+
+    /** Returns the best common ancestor of the two commits, or null if they
+     *  have none.  When a criss-cross history has several best merge bases,
+     *  the one with the highest generation, then the newest, is used. */
+    public static Commit findMergeBase(Commit inComingBranch, Commit currentBranch) {
+        // Parents are read from the commit graph; only the result is loaded
+        CommitGraph graph = CommitGraph.get(inComingBranch.getSHA(), currentBranch.getSHA());
+        int a = graph.find(inComingBranch.getSHA());
+        int b = graph.find(currentBranch.getSHA());
+        if (a == CommitGraph.NONE || b == CommitGraph.NONE)
+            return null;
+
+        List<Integer> bases = graph.mergeBases(a, b);
+        if (bases.isEmpty())
+            return null; // No common ancestor found
+        return ObjectStore.readCommit(graph.sha(bases.get(0)));
+    }
+
+    /** Returns the full id of the commit whose id is, or starts with, ID.
+     *  Abbreviations need at least CommitIndex.MIN_ABBREV digits.  If no
+     *  commit matches, prints MISSING, and if several do, lists them; then
+     *  returns null. */
+    private static String expandCommitId(String id, String missing) {
+        if (id.length() == Utils.UID_LENGTH && ObjectStore.containsCommit(id))
+            return id;
+        List<String> found = CommitIndex.expand(id);
+        if (found.size() == 1)
+            return found.get(0);
+        if (found.isEmpty()) {
+            Utils.message(missing);
         } else {
-            tree = new Tree();
+            Utils.message("Commit id " + id + " is ambiguous. It may be:");
+            for (String SHA : found)
+                Utils.message("  " + SHA);
         }
+        return null;
+    }
 
-        List<String> l = Utils.plainFilenamesIn(CWD);
+    /** Returns the commit named by NAME, a branch name or a possibly
+     *  abbreviated commit id, or null after printing why there is none. */
+    private static String resolveCommit(String name) {
+        File branch = Utils.join(BRANCH, name);
+        if (branch.isFile())
+            return Utils.readContentsAsString(branch);
+        return expandCommitId(name, "No commit with that id exists.");
+    }
 
-        Map<String, String> untracked = Tracked();
-        for (String file: l) {
-            // Checking the existence of untracked files
-            if (untracked.containsKey(file) && untracked.get(file).equals("Untracked") ) {
-                Utils.message("There is an untracked file in the way; delete it, or add and commit it first.");
+    /** Prints the differences, in unified format (see DiffPrinter),
+     *  between the working files and the index if OPTIONS is empty, between
+     *  the HEAD commit and the index if it is --staged, and between two
+     *  commits if it names them.  Only files whose blob hashes differ are
+     *  read; unchanged subtrees of two commits are not even listed.  Renamed
+     *  files are found by Renames, and with a leading -C option, so are
+     *  files copied from the files changed. */
+    public static void diff(String... options) {
+        // Check the existence of .gitlet Directory
+        if (!initializedGitlet())
+            return;
+
+        boolean copies = options.length > 0 && options[0].equals("-C");
+        if (copies)
+            options = Arrays.copyOfRange(options, 1, options.length);
+
+        // Path -> {old hash, new hash}, where null is a missing file
+        Map<String, String[]> changes = new TreeMap<>();
+        boolean working = false;
+        if (options.length == 0) {
+            working = true;
+            Map<String, String> index = indexFiles();
+            List<String> present = new ArrayList<>();
+            for (String path : index.keySet()) {
+                if (Utils.join(CWD, path).isFile())
+                    present.add(path);
+                else
+                    changes.put(path, new String[] {index.get(path), null});
+            }
+            List<String> hashes = st.hashAll(present);
+            for (int i = 0; i < present.size(); i += 1) {
+                String path = present.get(i);
+                if (!hashes.get(i).equals(index.get(path)))
+                    changes.put(path, new String[] {index.get(path), hashes.get(i)});
+            }
+            st.saveStats();
+        } else if (options.length == 1 && (options[0].equals("--staged") || options[0].equals("--cached"))) {
+            String head = headCommitId();
+            String tree = ObjectStore.readCommit(head).getTree();
+            try {
+                st = StagingArea.load();
+            } catch (IllegalArgumentException e) {
+                st = new StagingArea();
+            }
+            if (!st.iscleared()) {
+                for (Map.Entry<String, StagedFile> e : st.getStagedFiles().entrySet()) {
+                    TreeEntry committed = Tree.lookup(tree, e.getKey());
+                    String oldHash = committed == null ? null : committed.getHash();
+                    String newHash = e.getValue() == null ? null : e.getValue().getHash();
+                    if (!Objects.equals(oldHash, newHash))
+                        changes.put(e.getKey(), new String[] {oldHash, newHash});
+                }
+            }
+        } else if (options.length == 2) {
+            String first = resolveCommit(options[0]);
+            if (first == null)
+                return;
+            String second = resolveCommit(options[1]);
+            if (second == null)
                 return;
+            String a = ObjectStore.readCommit(first).getTree();
+            String b = ObjectStore.readCommit(second).getTree();
+            Map<String, String> changed = new TreeMap<>();
+            Tree.diff(a, b, changed);
+            for (Map.Entry<String, String> e : changed.entrySet()) {
+                TreeEntry old = Tree.lookup(a, e.getKey());
+                changes.put(e.getKey(), new String[] {old == null ? null : old.getHash(), e.getValue()});
             }
+        } else {
+            Utils.message("Incorrect operands.");
+            return;
         }
 
-        // Deleting tracked files that are not in checked-out commit tree
-        for (String file: l) {
-            if (!tree.getTree().containsKey(file)) {
-                Utils.restrictedDelete(file);
+        // Added files renamed from removed files, or copied from changed ones
+        Map<String, String> removed = new HashMap<>();
+        Map<String, String> added = new HashMap<>();
+        Map<String, String> sources = new HashMap<>();
+        for (Map.Entry<String, String[]> e : changes.entrySet()) {
+            String oldHash = e.getValue()[0], newHash = e.getValue()[1];
+            if (newHash == null)
+                removed.put(e.getKey(), oldHash);
+            else if (oldHash == null)
+                added.put(e.getKey(), newHash);
+            else if (copies)
+                sources.put(e.getKey(), oldHash);
+        }
+        Map<String, Renames.Pair> pairs = new HashMap<>();
+        Set<String> renamed = new HashSet<>();
+        if (!added.isEmpty() && (!removed.isEmpty() || !sources.isEmpty())) {
+            for (Renames.Pair p : Renames.detect(removed, added, sources)) {
+                pairs.put(p.to, p);
+                if (!p.copy)
+                    renamed.add(p.from);
             }
         }
 
-        for (HashMap.Entry<String, TreeEntry> entry : tree.getTree().entrySet()) {
-            if (entry.getValue() != null) {
-                try {
-                    // Fetching the content
-                    String blobHash = entry.getValue().getHash();
-                    File f = Utils.join(BLOBS, blobHash);
-                    Blob blob = Utils.readObject(f, Blob.class);
-                    String content = blob.getContent();
-
-                    // Overwriting the content
-                    f = Utils.join(CWD, entry.getKey());
-                    Utils.writeContents(f, content);
-
-                } catch (IllegalArgumentException e) {
-                    Utils.message("Unknown Error !!!");
-                }
+        DiffPrinter printer = new DiffPrinter();
+        try {
+            for (Map.Entry<String, String[]> e : changes.entrySet()) {
+                if (renamed.contains(e.getKey()))
+                    continue;
+                Renames.Pair pair = pairs.get(e.getKey());
+                String oldPath = pair == null ? e.getKey() : pair.from;
+                String oldHash = changes.get(oldPath)[0], newHash = e.getValue()[1];
+                ByteBuffer old = oldHash == null ? null : Blob.map(oldHash);
+                ByteBuffer neu = newHash == null ? null
+                        : working ? mapFile(Utils.join(CWD, e.getKey())) : Blob.map(newHash);
+                printer.print(oldPath, e.getKey(), pair, oldHash, old, newHash, neu);
             }
+            printer.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
-
-        // Changing the current branch (HEAD) to the given branch.
-        Utils.writeContents(HEAD, commit.getBranch());
-
-        // Clearing Staging Area
-        st = Utils.readObject(INDEX, StagingArea.class);
-        st.clearStage();
-        Utils.writeObject(INDEX, st);
     }
 
-    public static Commit findMergeBase(Commit inComingBranch, Commit currentBranch) {
-        // Visited sets for both branches
-        Set<String> visitedBranch1 = new HashSet<>();
-        Set<String> visitedBranch2 = new HashSet<>();
-
-        // Queues for BFS
-        Queue<Commit> queue1 = new LinkedList<>();
-        Queue<Commit> queue2 = new LinkedList<>();
-
-        queue1.add(inComingBranch);
-        queue2.add(currentBranch);
-
-        File path;
-        Commit parent;
-        // Perform BFS for both branches
-        while (!queue1.isEmpty() || !queue2.isEmpty()) {
-            // Process inComingBranch
-            if (!queue1.isEmpty()) {
-                Commit current1 = queue1.poll();
-                if (visitedBranch2.contains(current1.getSHA()))
-                    return current1; // Found common ancestor
-
-                visitedBranch1.add(current1.getSHA());
-                if (current1.getParent() != null) {
-                    path = Utils.join(COMMITS, current1.getParent());
-                    parent = Utils.readObject(path, Commit.class);
-                    queue1.add(parent);
-                }
-                if (current1.getSecParent() != null) {
-                    path = Utils.join(COMMITS, current1.getSecParent());
-                    parent = Utils.readObject(path, Commit.class);
-                    queue1.add(parent);
-                }
-            }
-
-            // Process currentBranch
-            if (!queue2.isEmpty()) {
-                Commit current2 = queue2.poll();
-                if (visitedBranch1.contains(current2.getSHA()))
-                    return current2; // Found common ancestor
-
-                visitedBranch2.add(current2.getSHA());
-                if (current2.getParent() != null) {
-                    path = Utils.join(COMMITS, current2.getParent());
-                    parent = Utils.readObject(path, Commit.class);
-                    queue2.add(parent);
-                }
-                if (current2.getSecParent() != null) {
-                    path = Utils.join(COMMITS, current2.getSecParent());
-                    parent = Utils.readObject(path, Commit.class);
-                    queue2.add(parent);
-                }
+    /** Returns the files of the index: the files of the HEAD commit with
+     *  the staged changes applied, keyed by path.  Loads st. */
+    private static Map<String, String> indexFiles() {
+        Map<String, String> files = new TreeMap<>();
+        for (Map.Entry<String, TreeEntry> e : StagingArea.headFiles().entrySet())
+            files.put(e.getKey(), e.getValue().getHash());
+        try {
+            st = StagingArea.load();
+        } catch (IllegalArgumentException e) {
+            st = new StagingArea();
+        }
+        if (!st.iscleared()) {
+            for (Map.Entry<String, StagedFile> e : st.getStagedFiles().entrySet()) {
+                if (e.getValue() == null)
+                    files.remove(e.getKey());
+                else
+                    files.put(e.getKey(), e.getValue().getHash());
             }
         }
-
-        return null; // No common ancestor found
+        return files;
     }
 
-    private static String handleConflict(String name, TreeEntry currentEntry, TreeEntry inComingEntry) {
-        File path;
-        Blob current, inComing;
-        if (currentEntry != null) {
-            path = Utils.join(BLOBS, currentEntry.getHash());
-            current = Utils.readObject(path, Blob.class);
-        } else {
-            current = new Blob();
-        }
+    /** Returns the id of the HEAD commit. */
+    private static String headCommitId() {
+        return Utils.readContentsAsString(Utils.join(BRANCH, Utils.readContentsAsString(HEAD)));
+    }
 
-        if (inComingEntry != null) {
-            path = Utils.join(BLOBS, inComingEntry.getHash());
-            inComing = Utils.readObject(path, Blob.class);
-        } else {
-            inComing = new Blob();
+    /** Returns the contents of the working file F as a read-only
+     *  memory-mapped buffer. */
+    private static ByteBuffer mapFile(File f) throws IOException {
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
         }
+    }
 
-        String currentContents = current.getContent();
-        String givenContents = inComing.getContent();
+    /** Prints the best common ancestor of the commits named by A and B, or
+     *  all of them if ALL. */
+    public static void mergeBase(String a, String b, boolean all) {
+        // Check the existence of .gitlet Directory
+        if (!initializedGitlet())
+            return;
 
-        conflict = true;
+        String first = resolveCommit(a);
+        if (first == null)
+            return;
+        String second = resolveCommit(b);
+        if (second == null)
+            return;
 
-        // Construct conflict content
-        return "<<<<<<< HEAD\n" + currentContents + "=======\n" + givenContents + ">>>>>>>\n";
+        CommitGraph graph = CommitGraph.get(first, second);
+        List<Integer> bases = graph.mergeBases(graph.find(first), graph.find(second));
+        for (int i = 0; i < bases.size() && (all || i == 0); i += 1)
+            Utils.message(graph.sha(bases.get(i)));
     }
 
-    // Perform a three-way diff between trees
-    public static Tree diffTreesWithBase(Commit splitPoint, Commit inComingBranch, Commit currentBranch) {
-        File path;
-        Tree baseTree;
-        if (splitPoint.getTree() != null) {
-            path = Utils.join(TREES, splitPoint.getTree());
-            baseTree = Utils.readObject(path, Tree.class);
-        } else
-            baseTree = new Tree();
-
-        Tree currentTree;
-        if (currentBranch.getTree() != null) {
-            path = Utils.join(TREES, currentBranch.getTree());
-            currentTree = Utils.readObject(path, Tree.class);
-        } else
-            currentTree = new Tree();
-
-        Tree inComingTree;
-        if (inComingBranch.getTree() != null) {
-            path = Utils.join(TREES, inComingBranch.getTree());
-            inComingTree = Utils.readObject(path, Tree.class);
-        } else
-            inComingTree = new Tree();
+    /** Writes the conflicting versions of NAME aside to WRITER, streaming
+     *  each side from the blob store, and stores the result. */
+    private static Blob handleConflict(CheckoutWriter writer, String name, TreeEntry currentEntry,
+                                       TreeEntry inComingEntry) {
+        conflict = true;
+        return Blob.store(writer.add(name, out -> {
+            out.write(ByteBuffer.wrap("<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8)));
+            if (currentEntry != null)
+                Blob.transferTo(currentEntry.getHash(), out);
+            out.write(ByteBuffer.wrap("=======\n".getBytes(StandardCharsets.UTF_8)));
+            if (inComingEntry != null)
+                Blob.transferTo(inComingEntry.getHash(), out);
+            out.write(ByteBuffer.wrap(">>>>>>>\n".getBytes(StandardCharsets.UTF_8)));
+        }));
+    }
 
+    /** Writes the line by line merge of the blobs CURRENT and INCOMING
+     *  aside to WRITER as the working file NAME (see Merge3), and stores the
+     *  result.  Only the lines changed differently on both sides since the
+     *  blob BASE are written as conflicts. */
+    private static Blob mergeLines(CheckoutWriter writer, String name, String base, String current,
+                                   String inComing) {
+        return Blob.store(writer.add(name, out -> {
+            if (Merge3.merge(Blob.map(base), Blob.map(current), Blob.map(inComing), out))
+                conflict = true;
+        }));
+    }
 
-        Tree t = new Tree();
-        // Union of all entries across the three trees
-        Set<String> allEntries = new HashSet<>();
-        allEntries.addAll(baseTree.getEntryNames());
-        allEntries.addAll(inComingTree.getEntryNames());
-        allEntries.addAll(currentTree.getEntryNames());
+    // Perform a three-way diff between trees, returning the SHA of the merged tree.
+    // The changes to the working directory are made aside in WRITER, which the
+    // caller installs once, and the staging area is left alone
+    public static String diffTreesWithBase(Commit splitPoint, Commit inComingBranch, Commit currentBranch,
+                                           CheckoutWriter writer) {
+        // Only files changed on either side since the split point need a decision;
+        // subtrees unchanged on both sides are never read
+        Set<String> allEntries = new TreeSet<>();
+        Map<String, String> current = new HashMap<>();
+        Tree.diff(splitPoint.getTree(), currentBranch.getTree(), current);
+        allEntries.addAll(current.keySet());
+        Map<String, String> inComing = new HashMap<>();
+        Tree.diff(splitPoint.getTree(), inComingBranch.getTree(), inComing);
+        allEntries.addAll(inComing.keySet());
+
+        // Changes to the tree of the current branch, and the files of the
+        // incoming branch to write
+        Map<String, String> t = new HashMap<>();
+        Map<String, String> writes = new HashMap<>();
+
+        // A file renamed on one side and changed on the other, or renamed
+        // alike on both, is merged line by line under its new name
+        Map<String, String> currentRenames = renames(splitPoint.getTree(), current);
+        Map<String, String> inComingRenames = renames(splitPoint.getTree(), inComing);
+        for (Map.Entry<String, String> r : inComingRenames.entrySet()) {
+            String from = r.getKey(), to = r.getValue();
+            String base = Tree.lookup(splitPoint.getTree(), from).getHash();
+            if (to.equals(currentRenames.get(from))) {
+                if (!current.get(to).equals(inComing.get(to)))
+                    t.put(to, mergeLines(writer, to, base, current.get(to), inComing.get(to)).getHash());
+                allEntries.remove(from);
+                allEntries.remove(to);
+                continue;
+            }
+            TreeEntry currentEntry = Tree.lookup(currentBranch.getTree(), from);
+            if (currentEntry != null && !currentEntry.getHash().equals(base)
+                    && Tree.lookup(currentBranch.getTree(), to) == null) {
+                t.put(to, mergeLines(writer, to, base, currentEntry.getHash(), inComing.get(to)).getHash());
+                writer.delete(from);
+                t.put(from, null);
+                allEntries.remove(from);
+                allEntries.remove(to);
+            }
+        }
+        for (Map.Entry<String, String> r : currentRenames.entrySet()) {
+            String from = r.getKey(), to = r.getValue();
+            if (inComingRenames.containsKey(from))
+                continue;
+            String base = Tree.lookup(splitPoint.getTree(), from).getHash();
+            TreeEntry inComingEntry = Tree.lookup(inComingBranch.getTree(), from);
+            if (inComingEntry != null && !inComingEntry.getHash().equals(base)
+                    && Tree.lookup(inComingBranch.getTree(), to) == null) {
+                t.put(to, mergeLines(writer, to, base, current.get(to), inComingEntry.getHash()).getHash());
+                allEntries.remove(from);
+                allEntries.remove(to);
+            }
+        }
 
         for (String name : allEntries) {
-            TreeEntry baseEntry = baseTree.getTree().get(name);
-            TreeEntry inComingEntry = inComingTree.getTree().get(name);
-            TreeEntry currentEntry = currentTree.getTree().get(name);
+            TreeEntry baseEntry = Tree.lookup(splitPoint.getTree(), name);
+            TreeEntry inComingEntry = Tree.lookup(inComingBranch.getTree(), name);
+            TreeEntry currentEntry = Tree.lookup(currentBranch.getTree(), name);
 
             if (baseEntry != null) {
                 // File present in split point
                 if (currentEntry != null && inComingEntry != null) {
                     if ( baseEntry.getHash().equals(currentEntry.getHash()) && !baseEntry.getHash().equals(inComingEntry.getHash()) ) {
                         // Case 1: Modified in the incoming branch since the split point, but not modified in the current branch
-                        checkoutCommitID(inComingBranch.getSHA(), name);
-                        t.addBlob(name, inComingEntry);
-                        try {
-                            st = Utils.readObject(INDEX, StagingArea.class);
-                        } catch (IllegalArgumentException e) {
-                            st = new StagingArea();
-                        }
-                        if (st.iscleared()) {
-                            st = new StagingArea();
-                        }
-                        st.addFile(name);
-                        Utils.writeObject(INDEX, st);
+                        writes.put(name, inComingEntry.getHash());
+                        t.put(name, inComingEntry.getHash());
                     } else if ( !baseEntry.getHash().equals(currentEntry.getHash()) && baseEntry.getHash().equals(inComingEntry.getHash()) ) {
                         // Case 2: Modified in the current branch but not in the given branch since the split point
                         // Do nothing
-                        t.addBlob(name, currentEntry);
+                        t.put(name, currentEntry.getHash());
                     } else if ( currentEntry.getHash().equals(inComingEntry.getHash()) ) {
                         // Case 3: Modified in both the current and given branch in the same way (have the same content)
                         // Do nothing
-                        t.addBlob(name, currentEntry);
+                        t.put(name, currentEntry.getHash());
                     } else {
-                        // Case 8: Modified in different ways in the current and given branches (contents of both are changed and different from other)
-                        String conf = handleConflict(name, currentEntry, inComingEntry);
-                        path = Utils.join(CWD, name);
-                        Utils.writeContents(path, conf);
-                        Blob b = new Blob(path);
-                        path = Utils.join(COMMITS, b.getHash());
-                        Utils.writeObject(path, b);
-                        TreeEntry e = new TreeEntry(name, b.getHash());
-                        t.addBlob(name, e);
+                        // Case 8: Modified in different ways in the current and given branches (contents of both are changed and different from other);
+                        // only the lines changed on both sides conflict
+                        Blob b = mergeLines(writer, name, baseEntry.getHash(), currentEntry.getHash(), inComingEntry.getHash());
+                        t.put(name, b.getHash());
                     }
                 } else if (currentEntry != null && inComingEntry == null) {
                     if (baseEntry.getHash().equals(currentEntry.getHash())) {
                         // Case 6: Unmodified in the current branch, and absent in the incoming branch
-                        Repository.rm(name);
+                        writer.delete(name);
+                        t.put(name, null);
                     } else {
                         // Case 8: The contents of one are changed and the other file is deleted
-                        String conf = handleConflict(name, currentEntry, inComingEntry);
-                        path = Utils.join(CWD, name);
-                        Utils.writeContents(path, conf);
-                        Blob b = new Blob(path);
-                        path = Utils.join(COMMITS, b.getHash());
-                        Utils.writeObject(path, b);
-                        TreeEntry e = new TreeEntry(name, b.getHash());
-                        t.addBlob(name, e);
+                        Blob b = handleConflict(writer, name, currentEntry, inComingEntry);
+                        t.put(name, b.getHash());
                     }
                 } else if (currentEntry == null && inComingEntry != null) {
                     if (baseEntry.getHash().equals(inComingEntry.getHash())) {
@@ -1059,14 +1352,8 @@ public class Repository {
                         // Do nothing
                     } else {
                         // Case 8: The contents of one are changed and the other file is deleted
-                        String conf = handleConflict(name, currentEntry, inComingEntry);
-                        path = Utils.join(CWD, name);
-                        Utils.writeContents(path, conf);
-                        Blob b = new Blob(path);
-                        path = Utils.join(COMMITS, b.getHash());
-                        Utils.writeObject(path, b);
-                        TreeEntry e = new TreeEntry(name, b.getHash());
-                        t.addBlob(name, e);
+                        Blob b = handleConflict(writer, name, currentEntry, inComingEntry);
+                        t.put(name, b.getHash());
                     }
                 } else {
                     // Case 3: Modified in both the current and given branch in the same way (both removed)
@@ -1076,36 +1363,42 @@ public class Repository {
                 // File not present in split point
                 if (currentEntry != null && inComingEntry != null) {
                     // Case 8: The contents of one are changed and the other file is deleted
-                    String conf = handleConflict(name, currentEntry, inComingEntry);
-                    path = Utils.join(CWD, name);
-                    Utils.writeContents(path, conf);
-                    Blob b = new Blob(path);
-                    path = Utils.join(COMMITS, b.getHash());
-                    Utils.writeObject(path, b);
-                    TreeEntry e = new TreeEntry(name, b.getHash());
-                    t.addBlob(name, e);
+                    Blob b = handleConflict(writer, name, currentEntry, inComingEntry);
+                    t.put(name, b.getHash());
                 } else if (currentEntry != null && inComingEntry == null) {
                     // Case 4: Present only in the current branch
                     // Do nothing
-                    t.addBlob(name, currentEntry);
+                    t.put(name, currentEntry.getHash());
                 } else if (currentEntry == null && inComingEntry != null) {
                     // Case 5: Present only in the incoming branch
-                    checkoutCommitID(inComingBranch.getSHA(), name);
-                    t.addBlob(name, inComingEntry);
-                    try {
-                        st = Utils.readObject(INDEX, StagingArea.class);
-                    } catch (IllegalArgumentException e) {
-                        st = new StagingArea();
-                    }
-                    if (st.iscleared()) {
-                        st = new StagingArea();
-                    }
-                    st.addFile(name);
-                    Utils.writeObject(INDEX, st);
+                    writes.put(name, inComingEntry.getHash());
+                    t.put(name, inComingEntry.getHash());
                 }
             }
         }
-        return t;
+        writer.addAll(writes);
+        return Tree.update(currentBranch.getTree(), t);
+    }
+
+    /** Returns the files renamed from the tree BASE by CHANGES, the paths
+     *  that differ from BASE mapped to their new blobs (see Tree.diff), as
+     *  a map from old to new path. */
+    private static Map<String, String> renames(String base, Map<String, String> changes) {
+        Map<String, String> removed = new HashMap<>();
+        Map<String, String> added = new HashMap<>();
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            TreeEntry old = Tree.lookup(base, e.getKey());
+            if (e.getValue() == null && old != null)
+                removed.put(e.getKey(), old.getHash());
+            else if (e.getValue() != null && old == null)
+                added.put(e.getKey(), e.getValue());
+        }
+        Map<String, String> result = new HashMap<>();
+        if (!removed.isEmpty() && !added.isEmpty()) {
+            for (Renames.Pair p : Renames.detect(removed, added, Collections.emptyMap()))
+                result.put(p.from, p.to);
+        }
+        return result;
     }
 
     public static void merge(String branch) {
@@ -1119,9 +1412,9 @@ public class Repository {
             return;
         }
 
-        List<String> l = Utils.plainFilenamesIn(CWD);
+        List<String> l = workingFileNames();
         try {
-            st = Utils.readObject(INDEX, StagingArea.class);
+            st = StagingArea.load();
         } catch (IllegalArgumentException e) {
             st = new StagingArea();
         }
@@ -1148,8 +1441,7 @@ public class Repository {
         // Fetching the incoming branch
         try {
             commitSHA = Utils.readContentsAsString(path);
-            path = Utils.join(COMMITS, commitSHA);
-            inComingBranch = Utils.readObject(path, Commit.class);
+            inComingBranch = ObjectStore.readCommit(commitSHA);
         } catch (IllegalArgumentException e) {
             Utils.message("A branch with that name does not exist.");
             return;
@@ -1158,8 +1450,7 @@ public class Repository {
         // Fetching the current branch
         path = Utils.join(BRANCH, currentHead);
         commitSHA = Utils.readContentsAsString(path);
-        path = Utils.join(COMMITS, commitSHA);
-        Commit currentBranch = Utils.readObject(path, Commit.class);
+        Commit currentBranch = ObjectStore.readCommit(commitSHA);
 
         // If the merge results in no new changes (because the branches are already identical or equivalent)
         if (currentBranch.getSHA().equals(inComingBranch.getSHA())) {
@@ -1167,31 +1458,33 @@ public class Repository {
             return;
         }
 
-        Commit splitPoint = findMergeBase(inComingBranch, currentBranch);
-        // If the split point is the same commit as the incoming branch, then we do nothing; the merge is completed.
-        if (splitPoint.getSHA().equals(inComingBranch.getSHA())) {
+        // If the incoming branch is an ancestor of the current branch (the split point), then we do nothing; the merge is completed.
+        if (Bitmaps.isAncestor(inComingBranch.getSHA(), currentBranch.getSHA())) {
             Utils.message("Given branch is an ancestor of the current branch.");
             return;
         }
-        // If the split point is the current branch
-        if (splitPoint.getSHA().equals(currentBranch.getSHA())) {
-            checkoutBranch(branch);
+        // If the current branch is the split point
+        if (Bitmaps.isAncestor(currentBranch.getSHA(), inComingBranch.getSHA())) {
+            checkoutBranch(branch, false);
             Utils.message("Current branch fast-forwarded.");
             return;
         }
+        Commit splitPoint = findMergeBase(inComingBranch, currentBranch);
 
-        // Getting new tree
-        Tree commitTree = diffTreesWithBase(splitPoint, inComingBranch, currentBranch);
+        // Getting new tree; the working directory is only changed once the
+        // merge commit is stored
+        CheckoutWriter writer = CheckoutWriter.create();
+        String SHA;
+        try {
+            SHA = diffTreesWithBase(splitPoint, inComingBranch, currentBranch, writer);
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
         if (conflict) {
             Utils.message("Encountered a merge conflict.");
             conflict = false;
         }
-        String SHA = commitTree.hashTreeObject();
-
-        // Writing new tree object
-        path = Utils.join(TREES, SHA);
-        Utils.writeObject(path, commitTree);
-
         // Commiting Merge
         String message = "Merged " + inComingBranch.getBranch() + "into "  + currentBranch.getBranch() + ".";
         Commit commit = new Commit(message);
@@ -1211,15 +1504,145 @@ public class Repository {
         commit.setTimeStamp(sdf.format(now));
 
         SHA = commit.hashCommitObject();
-        path = Utils.join(COMMITS, SHA);
-        Utils.writeObject(path, commit);
+        ObjectStore.writeCommit(commit);
 
-        // Updating head and branch files
+        // Updating the working files, the branch and the staging area together
         File branchFile = Utils.join(BRANCH, commit.getBranch());
-        Utils.writeContents(branchFile, SHA);
+        writer.setRef(branchFile, SHA);
+        writer.clearIndex();
+        if (!install(writer))
+            return;
+        CommitGraph.update();
+        Bitmaps.update();
+        MessageIndex.add(commit);
 
-        // Clear Staging Area
-        st.clearStage();
+    }
 
+    public static void pack() {
+        // Check the existence of .gitlet Directory
+        if (!initializedGitlet())
+            return;
+
+        int n = Pack.repack();
+        Utils.message("Packed %d objects.", n);
+    }
+
+    /** Checks that every tree reachable from a branch can be read and is
+     *  stored under its canonical hash, reporting the trees that are not. */
+    public static void verifyTrees() {
+        // Check the existence of .gitlet Directory
+        if (!initializedGitlet())
+            return;
+
+        Set<String> seen = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        for (Commit c : parentsFirst(CommitGraph.branchHeads())) {
+            String t = c.getTree();
+            if (t != null && seen.add(t))
+                queue.add(t);
+        }
+
+        int bad = 0;
+        while (!queue.isEmpty()) {
+            String sha = queue.poll();
+            Tree t;
+            try {
+                t = ObjectStore.readTree(sha);
+            } catch (IllegalArgumentException e) {
+                Utils.message("Cannot read tree %s.", sha);
+                bad += 1;
+                continue;
+            }
+            for (TreeEntry e : t.getTree().values()) {
+                if (e.isDirectory() && seen.add(e.getHash()))
+                    queue.add(e.getHash());
+            }
+            if (!sha.equals(t.canonicalHash())) {
+                Utils.message("Tree %s is not canonical.", sha);
+                bad += 1;
+            }
+        }
+        Utils.message("Checked %d trees, %d bad.", seen.size(), bad);
+        if (bad > 0)
+            Utils.message("Run migrate-trees to rewrite them.");
+    }
+
+    /** Rewrites the trees of every commit reachable from a branch in the
+     *  canonical encoding.  Commits
+     *  whose tree or ancestors changed are rewritten with the same message,
+     *  branch and timestamp, and the branches are moved to the rewritten
+     *  commits.  The old objects are left in place. */
+    public static void migrateTrees() {
+        // Check the existence of .gitlet Directory
+        if (!initializedGitlet())
+            return;
+
+        Map<String, String> trees = new HashMap<>();
+        Map<String, String> commits = new HashMap<>();
+        List<Commit> written = new ArrayList<>();
+        for (Commit c : parentsFirst(CommitGraph.branchHeads())) {
+            Commit n = new Commit(c.getMessage(), c.getBranch());
+            if (c.getParent() != null)
+                n.setParent(commits.getOrDefault(c.getParent(), c.getParent()));
+            if (c.getSecParent() != null)
+                n.setSecParent(commits.getOrDefault(c.getSecParent(), c.getSecParent()));
+            n.setTimeStamp(c.getTimeStamp());
+            if (c.getTree() != null)
+                n.setTree(Tree.canonicalize(c.getTree(), trees));
+
+            String SHA = n.hashCommitObject();
+            if (!SHA.equals(c.getSHA())) {
+                ObjectStore.writeCommit(n);
+                written.add(n);
+            }
+            commits.put(c.getSHA(), SHA);
+        }
+
+        // Moving the branches to the rewritten commits
+        List<String> branches = Utils.plainFilenamesIn(BRANCH);
+        if (branches != null) {
+            for (String b : branches) {
+                File f = Utils.join(BRANCH, b);
+                String head = Utils.readContentsAsString(f);
+                if (commits.containsKey(head) && !commits.get(head).equals(head))
+                    LockFile.compareAndSet(f, head, commits.get(head));
+            }
+        }
+        CommitGraph.update();
+        Bitmaps.update();
+        MessageIndex.add(written);
+        Utils.message("Rewrote %d commits.", written.size());
+    }
+
+    /** Returns the commits SHAS and their ancestors, each after its parents. */
+    private static List<Commit> parentsFirst(List<String> shas) {
+        Map<String, Commit> read = new HashMap<>();
+        Set<String> done = new HashSet<>();
+        List<Commit> order = new ArrayList<>();
+        Deque<String> stack = new ArrayDeque<>();
+        for (String start : shas) {
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                String sha = stack.peek();
+                if (done.contains(sha)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit c = read.computeIfAbsent(sha, ObjectStore::readCommit);
+                boolean ready = true;
+                for (String p : new String[] {c.getParent(), c.getSecParent()}) {
+                    if (p != null && !done.contains(p) && ObjectStore.containsCommit(p)) {
+                        stack.push(p);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    done.add(sha);
+                    order.add(c);
+                }
+            }
+        }
+        return order;
     }
 }
@@ -1,18 +1,24 @@
 package gitlet;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
+/** A file staged for addition: its path and the hash of the blob holding
+ *  its contents, which is written to the object store when it is staged. */
 public class StagedFile implements Serializable {
-    private final Blob blob;
-    private final String path;
+    private static final long serialVersionUID = -5163763133838019532L;
 
-    public StagedFile(Blob blob, String path) {
-        this.blob = blob;
+    private String hash;
+    private String path;
+
+    public StagedFile(String hash, String path) {
+        this.hash = hash;
         this.path = path;
     }
 
-    public Blob getBlob() {
-        return this.blob;
+    public String getHash() {
+        return this.hash;
     }
 
     public String getPath() {
@@ -21,6 +27,20 @@ public class StagedFile implements Serializable {
 
     @Override
     public String toString() {
-        return this.path + " " + this.blob.getHash();
+        return this.path + " " + this.hash;
+    }
+
+    /** Reads a serialized StagedFile, taking the hash from the embedded Blob
+     *  written by older indexes. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.path = (String) fields.get("path", null);
+        Blob blob;
+        try {
+            blob = (Blob) fields.get("blob", null);
+        } catch (IllegalArgumentException excp) {
+            blob = null;
+        }
+        this.hash = blob != null ? blob.getHash() : (String) fields.get("hash", null);
     }
 }
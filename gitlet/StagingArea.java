@@ -1,70 +1,332 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
 
 public class StagingArea implements Serializable {
+    private static final long serialVersionUID = 81477175267888347L;
+
+    /** Version of the binary index format. */
+    private static final int INDEX_VERSION = 1;
+
     private HashMap<String, StagedFile> stage;
+    /** Stat data and blob hash of working files, by path. */
+    private HashMap<String, StatEntry> statCache;
+    /** Modification time of the index file when it was loaded, in nanoseconds. */
+    private transient long loadedAt = Long.MIN_VALUE;
+    /** True if statCache changed since the index was loaded. */
+    private transient boolean statsChanged;
+
+    /** The size, modification time and inode of a working file, together
+     *  with the blob hash last computed for it. */
+    static class StatEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long size;
+        final long mtime;
+        final long inode;
+        final String hash;
+
+        StatEntry(long size, long mtime, long inode, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.hash = hash;
+        }
+
+        boolean sameStat(StatEntry other) {
+            return other != null && this.size == other.size
+                    && this.mtime == other.mtime && this.inode == other.inode;
+        }
+    }
 
     public StagingArea() {
         this.stage = new HashMap<>();
+        this.statCache = new HashMap<>();
     }
 
-    public void addFile(String filePath) throws IllegalArgumentException {
-        File f = new File(filePath);
-        Blob blob = new Blob(f);
+    /** Reads the staging area from the index file.  Throws
+     *  IllegalArgumentException if there is no readable index. */
+    public static StagingArea load() throws IllegalArgumentException {
+        byte[] bytes = Utils.readContents(Repository.INDEX);
+        StagingArea st;
+        if (bytes.length >= 4 && bytes[0] == 'G' && bytes[1] == 'L' && bytes[2] == 'D' && bytes[3] == 'X') {
+            try {
+                st = decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        } else {
+            // Index written by Java serialization
+            st = Utils.readObject(Repository.INDEX, StagingArea.class);
+        }
+        try {
+            st.loadedAt = toNanos(Files.getLastModifiedTime(Repository.INDEX.toPath()));
+        } catch (IOException e) {
+            st.loadedAt = Long.MIN_VALUE;
+        }
+        return st;
+    }
 
-        /* If the current working version of the file is identical to the version in the current commit, do not stage it to be added,
-           and remove it from the staging area if it is already there (as can happen when a file is changed, added, and then changed back to it’s original version).
-         */
+    /** Writes the staging area to the index file. */
+    public void save() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            encode(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw Utils.error("Internal error encoding index.");
+        }
+        LockFile.write(Repository.INDEX, (Object) bytes.toByteArray());
+        this.statsChanged = false;
+    }
 
-        // Fetch the previous commit and update the current commit parent and branch
-        String branch = Utils.readContentsAsString(Repository.HEAD);
-        File path = Utils.join(Repository.BRANCH, branch);
-        String commitHash = Utils.readContentsAsString(path);
-        path = Utils.join(Repository.COMMITS, commitHash);
-        Commit commit = Utils.readObject(path, Commit.class);
-
-        // Getting tree
-        if (commit.getTree() != null) {
-            path = Utils.join(Repository.TREES, commit.getTree());
-            Tree tree = Utils.readObject(path, Tree.class);
-            if (tree.getTree().containsKey(filePath)) {
-                if (tree.getTree().get(filePath).getHash().equals(blob.getHash())) {
-                    if (!this.iscleared()) {
-                        this.removeFile(filePath);
-                    }
-                    return;
-                }
+    /** Writes the index format:
+     *
+     *      "GLDX"  version(4)
+     *      staged count(4), then per path: path  kind(1)  [sha(20)]
+     *      stat count(4), then per path: path  size(8)  mtime(8)  inode(8)  sha(20)
+     *
+     *  where KIND is 1 for a file staged for addition (followed by its blob
+     *  SHA) and 0 for a file staged for removal.  Only paths and hashes are
+     *  kept, so the index grows with the number of paths, not their size. */
+    private void encode(DataOutputStream out) throws IOException {
+        out.writeBytes("GLDX");
+        out.writeInt(INDEX_VERSION);
+        Map<String, StagedFile> staged = this.stage == null ? new HashMap<>() : this.stage;
+        out.writeInt(staged.size());
+        for (Map.Entry<String, StagedFile> e : new TreeMap<>(staged).entrySet()) {
+            ObjectStore.writeString(out, e.getKey());
+            if (e.getValue() == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(1);
+                out.write(Utils.sha1ToBytes(e.getValue().getHash()));
             }
         }
+        Map<String, StatEntry> stats = this.statCache == null ? new HashMap<>() : this.statCache;
+        out.writeInt(stats.size());
+        for (Map.Entry<String, StatEntry> e : new TreeMap<>(stats).entrySet()) {
+            ObjectStore.writeString(out, e.getKey());
+            out.writeLong(e.getValue().size);
+            out.writeLong(e.getValue().mtime);
+            out.writeLong(e.getValue().inode);
+            out.write(Utils.sha1ToBytes(e.getValue().hash));
+        }
+    }
+
+    private static StagingArea decode(DataInputStream in) throws IOException {
+        in.skipNBytes(4);
+        if (in.readInt() != INDEX_VERSION) {
+            throw new IOException("unsupported index version");
+        }
+        StagingArea st = new StagingArea();
+        byte[] sha = new byte[Utils.UID_LENGTH / 2];
+        int n = in.readInt();
+        for (int i = 0; i < n; i += 1) {
+            String path = ObjectStore.readString(in);
+            if (in.readByte() == 0) {
+                st.stage.put(path, null);
+            } else {
+                in.readFully(sha);
+                st.stage.put(path, new StagedFile(Utils.sha1FromBytes(sha), path));
+            }
+        }
+        n = in.readInt();
+        for (int i = 0; i < n; i += 1) {
+            String path = ObjectStore.readString(in);
+            long size = in.readLong();
+            long mtime = in.readLong();
+            long inode = in.readLong();
+            in.readFully(sha);
+            st.statCache.put(path, new StatEntry(size, mtime, inode, Utils.sha1FromBytes(sha)));
+        }
+        return st;
+    }
 
-        // If file is not staged, push it to staging area
-        if (!this.stage.containsKey(filePath))
-        {
-            StagedFile sf = new StagedFile(blob, f.toString());
-            this.stage.put(filePath, sf);
+    /** Writes the index only if the stat cache was updated since it was
+     *  loaded, so that later commands can reuse the computed hashes.  A
+     *  command that does not hold the index lock only writes it if the lock
+     *  is free and no other process changed the index since it was loaded;
+     *  otherwise the cache is simply not saved. */
+    public void saveStats() {
+        if (!this.statsChanged) {
             return;
         }
+        if (LockFile.isHeld(Repository.INDEX)) {
+            save();
+            return;
+        }
+        try (LockFile lock = LockFile.tryAcquire(Repository.INDEX)) {
+            if (lock != null && !changedSinceLoad()) {
+                save();
+            }
+        }
+    }
 
-        // If file was staged, push it if there are differences
-        StagedFile sf = this.stage.get(filePath);
-        Blob stagedBlob = sf.getBlob();
-        if (!stagedBlob.getHash().equals(blob.getHash()))
-        {
-            sf = new StagedFile(blob, f.toString());
-            this.stage.put(filePath, sf);
+    private boolean changedSinceLoad() {
+        try {
+            return Repository.INDEX.exists()
+                    && toNanos(Files.getLastModifiedTime(Repository.INDEX.toPath())) != this.loadedAt;
+        } catch (IOException e) {
+            return true;
         }
     }
 
+    /** Returns the blob hash of the working file FILEPATH.  The file is only
+     *  read and hashed if its size, modification time or inode changed since
+     *  the hash was cached.  Entries modified no earlier than the index file
+     *  itself are "racily clean": a change made within the same timestamp
+     *  tick would be invisible, so those are always rehashed. */
+    public String hashOf(String filePath) throws IllegalArgumentException {
+        return hashAll(Collections.singletonList(filePath)).get(0);
+    }
+
+    /** Returns the blob hashes of the working files PATHS, in the same
+     *  order, as hashOf would.  Files whose cached hash cannot be reused are
+     *  hashed in parallel by Workers. */
+    public List<String> hashAll(List<String> paths) throws IllegalArgumentException {
+        return hashAll(paths, f -> new Blob(f).getHash());
+    }
+
+    /** Returns the blob hashes of the working files PATHS, as hashAll does,
+     *  computing those that cannot be reused from the cache with HASHER,
+     *  which either hashes or stores a file. */
+    private List<String> hashAll(List<String> paths, Function<File, String> hasher)
+            throws IllegalArgumentException {
+        if (this.statCache == null) {
+            this.statCache = new HashMap<>();
+        }
+        String[] hashes = new String[paths.size()];
+        StatEntry[] stats = new StatEntry[paths.size()];
+        List<Integer> stale = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i += 1) {
+            stats[i] = stat(new File(paths.get(i)), null);
+            StatEntry cached = this.statCache.get(paths.get(i));
+            if (stats[i] != null && stats[i].sameStat(cached) && cached.mtime < this.loadedAt) {
+                hashes[i] = cached.hash;
+            } else {
+                stale.add(i);
+            }
+        }
+
+        List<String> computed = Workers.map(stale, i -> hasher.apply(new File(paths.get(i))));
+        for (int k = 0; k < stale.size(); k += 1) {
+            int i = stale.get(k);
+            hashes[i] = computed.get(k);
+            if (stats[i] != null) {
+                StatEntry st = stats[i];
+                this.statCache.put(paths.get(i), new StatEntry(st.size, st.mtime, st.inode, hashes[i]));
+                this.statsChanged = true;
+            }
+        }
+        return Arrays.asList(hashes);
+    }
+
+    /** Forgets the cached stat data of paths that are not in KEEP. */
+    public void pruneStats(Map<String, String> keep) {
+        if (this.statCache != null && this.statCache.keySet().retainAll(keep.keySet())) {
+            this.statsChanged = true;
+        }
+    }
+
+    /** Returns the stat data of F with the given HASH, or null if it cannot
+     *  be read. */
+    private static StatEntry stat(File f, String hash) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            long inode = 0;
+            try {
+                Object ino = Files.getAttribute(f.toPath(), "unix:ino");
+                inode = ((Number) ino).longValue();
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                // No inode numbers on this file system
+            }
+            return new StatEntry(attrs.size(), toNanos(attrs.lastModifiedTime()), inode, hash);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long toNanos(FileTime t) {
+        Instant i = t.toInstant();
+        return i.getEpochSecond() * 1_000_000_000L + i.getNano();
+    }
+
+    public void addFile(String filePath) throws IllegalArgumentException {
+        addFiles(Collections.singletonList(filePath), headFiles());
+    }
+
+    /** Stages the working files PATHS against TREE, the HEAD
+     *  commit's files.  Files whose cached hash cannot be reused are stored
+     *  in one parallel batch, which also gives their hashes for the stat
+     *  cache, so each file is read once; files with a cached hash are only
+     *  read if they must be staged and their blob is not stored yet. */
+    public void addFiles(List<String> paths, Map<String, TreeEntry> tree) throws IllegalArgumentException {
+        List<String> hashes = this.hashAll(paths, f -> Blob.store(f).getHash());
+        if (this.stage == null) {
+            this.stage = new HashMap<>();
+        }
+        for (int i = 0; i < paths.size(); i += 1) {
+            String filePath = paths.get(i);
+            String hash = hashes.get(i);
+
+            /* If the current working version of the file is identical to the version in the current commit, do not stage it to be added,
+               and remove it from the staging area if it is already there (as can happen when a file is changed, added, and then changed back to it’s original version).
+             */
+            TreeEntry entry = tree.get(filePath);
+            if (entry != null && entry.getHash().equals(hash)) {
+                this.removeFile(filePath);
+                continue;
+            }
+
+            // If file is not staged, or staged with other contents, stage its hash
+            StagedFile sf = this.stage.get(filePath);
+            if (sf == null || !sf.getHash().equals(hash))
+            {
+                if (!ObjectStore.contains(Repository.BLOBS, hash)) {
+                    hash = Blob.store(new File(filePath)).getHash();
+                }
+                this.stage.put(filePath, new StagedFile(hash, filePath));
+            }
+        }
+    }
+
+    /** Returns the files of the HEAD commit, keyed by path. */
+    static Map<String, TreeEntry> headFiles() throws IllegalArgumentException {
+        String branch = Utils.readContentsAsString(Repository.HEAD);
+        File path = Utils.join(Repository.BRANCH, branch);
+        String commitHash = Utils.readContentsAsString(path);
+        return Tree.files(ObjectStore.readCommit(commitHash).getTree());
+    }
+
     public void stageRemovedFile(String filePath) throws IllegalArgumentException {
-        File f = new File(filePath);
+        if (this.stage == null) {
+            this.stage = new HashMap<>();
+        }
         this.stage.put(filePath, null);
     }
 
     public void removeFile(String filePath) {
-        this.stage.remove(filePath);
+        if (this.stage != null) {
+            this.stage.remove(filePath);
+        }
     }
 
     public HashMap<String, StagedFile> getStagedFiles() {
@@ -74,7 +336,7 @@ public class StagingArea implements Serializable {
     public void clearStage()
     {
         this.stage = null;
-        Utils.writeObject(Repository.INDEX, this);
+        save();
     }
 
     public boolean iscleared()
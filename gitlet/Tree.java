@@ -1,34 +1,64 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
+/** One directory of a snapshot.  Entries are keyed by name and point either
+ *  to a blob or, for subdirectories, to another tree, so a directory that did
+ *  not change between two commits keeps its tree SHA and is stored once.
+ *
+ *  A tree is hashed over its canonical encoding: the entries sorted by name,
+ *  each written as
+ *
+ *      kind  name  '\0'  sha(20 bytes)
+ *
+ *  where KIND is BLOB_ENTRY or TREE_ENTRY.  The same snapshot therefore
+ *  always has the same SHA.  Trees written before this encoding (and before
+ *  subdirectories were supported) still read the same way; see verify-trees
+ *  and migrate-trees in Repository.
+ */
 public class Tree implements Serializable {
+    private static final long serialVersionUID = 3851927331287302281L;
+
+    /** Leading marker of tree bodies holding the canonical encoding. */
+    private static final int CANONICAL_FORMAT = -3;
+    /** Leading marker of tree bodies that record the kind of each entry.
+     *  Older bodies start with the length of the hash string instead. */
+    private static final int NESTED_FORMAT = -2;
+
+    /** Kinds of entries in the canonical encoding. */
+    private static final int BLOB_ENTRY = 1;
+    private static final int TREE_ENTRY = 2;
 
     HashMap<String, TreeEntry> blobs;
     String hash;
-    long treeSize;
 
     public Tree()
     {
         this.blobs = new HashMap<>();
-        treeSize = 0;
     }
 
     public void addBlob(String path, TreeEntry blob)
     {
-        if (this.blobs.containsKey(path)) {
-            this.treeSize -= this.blobs.get(path).getSize();
-        }
-
-        blobs.put(path, new TreeEntry(blob.getPath(), blob.getHash()));
-        this.treeSize += blob.getSize();
+        blobs.put(path, new TreeEntry(blob.getPath(), blob.getHash(), blob.isDirectory()));
+        this.hash = null;
     }
 
     public void removeBlob(String path)
     {
         this.blobs.remove(path);
+        this.hash = null;
     }
 
     public HashMap<String, TreeEntry> getTree()
@@ -36,33 +66,249 @@ public class Tree implements Serializable {
         return this.blobs;
     }
 
-
+    /** Returns the canonical encoding of this tree. */
+    byte[] canonical()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (TreeEntry e : new TreeMap<>(this.blobs).values()) {
+            bytes.write(e.isDirectory() ? TREE_ENTRY : BLOB_ENTRY);
+            bytes.writeBytes(e.getPath().getBytes(StandardCharsets.UTF_8));
+            bytes.write(0);
+            bytes.writeBytes(Utils.sha1ToBytes(e.getHash()));
+        }
+        return bytes.toByteArray();
+    }
 
     // Method to compute the SHA-1 hash of a tree object
     public String hashTreeObject() throws IllegalArgumentException
     {
-        StringBuilder s = new StringBuilder();
-        s.append("Tree ");
-        s.append(String.valueOf(this.treeSize));
-        s.append("\0");
-
-        for (TreeEntry e: this.blobs.values())
-        {
-            s.append(e.getPath());
-            s.append("\0");
-            s.append(e.getHash());
-            s.append("\n");
-        }
-        this.hash = Utils.sha1(s.toString());
+        this.hash = canonicalHash();
         return this.hash;
     }
 
+    /** Returns the SHA-1 hash of the canonical encoding of this tree,
+     *  leaving its hash alone, so that stored trees, which are shared
+     *  through the object cache and may keep an older SHA, are not
+     *  changed. */
+    String canonicalHash()
+    {
+        byte[] body = canonical();
+        return Utils.sha1("Tree " + body.length + "\0", body);
+    }
+
     public String getHash()
     {
+        if (this.hash == null) {
+            hashTreeObject();
+        }
         return this.hash;
     }
 
     public Set<String> getEntryNames() {
         return this.blobs.keySet();
     }
+
+    /** Writes this Tree to OUT in the object store format, which is its
+     *  canonical encoding. */
+    void write(DataOutput out) throws IOException
+    {
+        byte[] body = canonical();
+        out.writeInt(CANONICAL_FORMAT);
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    /** Reads a Tree written by write, or by an earlier format, from IN. */
+    static Tree read(DataInput in) throws IOException
+    {
+        Tree t = new Tree();
+        int n = in.readInt();
+        if (n == CANONICAL_FORMAT) {
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            int i = 0;
+            while (i < body.length) {
+                int kind = body[i];
+                int end = i + 1;
+                while (body[end] != 0) {
+                    end += 1;
+                }
+                String name = new String(body, i + 1, end - i - 1, StandardCharsets.UTF_8);
+                byte[] sha = Arrays.copyOfRange(body, end + 1, end + 1 + Utils.UID_LENGTH / 2);
+                t.blobs.put(name, new TreeEntry(name, Utils.sha1FromBytes(sha), kind == TREE_ENTRY));
+                i = end + 1 + sha.length;
+            }
+            return t;
+        }
+
+        boolean nested = n == NESTED_FORMAT;
+        String hash = null;
+        if (nested) {
+            hash = ObjectStore.readString(in);
+        } else if (n >= 0) {
+            byte[] bytes = new byte[n];
+            in.readFully(bytes);
+            hash = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.readLong();
+        n = in.readInt();
+        for (int i = 0; i < n; i += 1) {
+            String path = ObjectStore.readString(in);
+            String entryHash = ObjectStore.readString(in);
+            t.blobs.put(path, new TreeEntry(path, entryHash, nested && in.readBoolean()));
+        }
+        // Earlier formats were not hashed canonically: keep the stored SHA
+        t.hash = hash;
+        return t;
+    }
+
+    /** Returns the SHA of the canonical form of the tree SHA, writing it and
+     *  the canonical forms of its subtrees as needed.  DONE maps trees that
+     *  were already converted to their canonical SHA. */
+    static String canonicalize(String sha, Map<String, String> done) throws IllegalArgumentException
+    {
+        String result = done.get(sha);
+        if (result != null) {
+            return result;
+        }
+        Tree t = ObjectStore.readTree(sha);
+        Tree c = new Tree();
+        for (TreeEntry e : t.blobs.values()) {
+            String entryHash = e.isDirectory() ? canonicalize(e.getHash(), done) : e.getHash();
+            c.addBlob(e.getPath(), new TreeEntry(e.getPath(), entryHash, e.isDirectory()));
+        }
+        result = c.hashTreeObject();
+        ObjectStore.writeTree(c);
+        done.put(sha, result);
+        return result;
+    }
+
+    /* SNAPSHOTS */
+
+    /** Returns the files of the tree SHA and of its subtrees, keyed by their
+     *  path relative to the working directory.  A null SHA is the empty tree. */
+    static TreeMap<String, TreeEntry> files(String sha) throws IllegalArgumentException
+    {
+        TreeMap<String, TreeEntry> result = new TreeMap<>();
+        if (sha != null) {
+            collect(sha, "", result);
+        }
+        return result;
+    }
+
+    private static void collect(String sha, String prefix, Map<String, TreeEntry> out)
+    {
+        for (TreeEntry e : ObjectStore.readTree(sha).blobs.values()) {
+            String path = prefix + e.getPath();
+            if (e.isDirectory()) {
+                collect(e.getHash(), path + "/", out);
+            } else {
+                out.put(path, new TreeEntry(path, e.getHash()));
+            }
+        }
+    }
+
+    /** Returns the entry of the file PATH in the tree SHA, or null if there
+     *  is none.  Only the trees of the directories on PATH are read. */
+    static TreeEntry lookup(String sha, String path) throws IllegalArgumentException
+    {
+        String rest = path;
+        while (sha != null) {
+            int slash = rest.indexOf('/');
+            TreeEntry e = ObjectStore.readTree(sha).blobs.get(slash < 0 ? rest : rest.substring(0, slash));
+            if (e == null) {
+                return null;
+            } else if (slash < 0) {
+                return e.isDirectory() ? null : new TreeEntry(path, e.getHash());
+            } else if (!e.isDirectory()) {
+                return null;
+            }
+            sha = e.getHash();
+            rest = rest.substring(slash + 1);
+        }
+        return null;
+    }
+
+    /** Returns the SHA of the tree obtained from the tree SHA by setting every
+     *  path of CHANGES to the blob it maps to, or removing it if it maps to
+     *  null.  Only the directories on changed paths are rewritten and stored;
+     *  every other subtree keeps its SHA.  A null SHA is the empty tree. */
+    static String update(String sha, Map<String, String> changes) throws IllegalArgumentException
+    {
+        return update(sha, changes, true);
+    }
+
+    private static String update(String sha, Map<String, String> changes, boolean root)
+    {
+        // Stored trees are shared, so the changes are made to a copy
+        Tree t = new Tree();
+        if (sha != null) {
+            t.blobs.putAll(ObjectStore.readTree(sha).blobs);
+        }
+        Map<String, Map<String, String>> below = new TreeMap<>();
+        for (Map.Entry<String, String> c : changes.entrySet()) {
+            String path = c.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                below.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), c.getValue());
+            } else if (c.getValue() != null) {
+                t.addBlob(path, new TreeEntry(path, c.getValue()));
+            } else if (t.blobs.containsKey(path) && !t.blobs.get(path).isDirectory()) {
+                t.removeBlob(path);
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> d : below.entrySet()) {
+            String name = d.getKey();
+            TreeEntry old = t.blobs.get(name);
+            boolean wasDirectory = old != null && old.isDirectory();
+            String sub = update(wasDirectory ? old.getHash() : null, d.getValue(), false);
+            if (sub != null) {
+                t.addBlob(name, new TreeEntry(name, sub, true));
+            } else if (wasDirectory) {
+                t.removeBlob(name);
+            }
+        }
+        if (!root && t.blobs.isEmpty()) {
+            return null;
+        }
+        t.hashTreeObject();
+        ObjectStore.writeTree(t);
+        return t.hash;
+    }
+
+    /** Adds to OUT the path of every file that differs between the trees A
+     *  and B, mapped to its blob in B or to null if B does not have it.
+     *  Subtrees with the same SHA on both sides are skipped without being
+     *  read.  A null SHA is the empty tree. */
+    static void diff(String a, String b, Map<String, String> out) throws IllegalArgumentException
+    {
+        diff(a, b, "", out);
+    }
+
+    private static void diff(String a, String b, String prefix, Map<String, String> out)
+    {
+        if (Objects.equals(a, b)) {
+            return;
+        }
+        Map<String, TreeEntry> left = a == null ? new HashMap<>() : ObjectStore.readTree(a).blobs;
+        Map<String, TreeEntry> right = b == null ? new HashMap<>() : ObjectStore.readTree(b).blobs;
+        Set<String> names = new TreeSet<>(left.keySet());
+        names.addAll(right.keySet());
+        for (String name : names) {
+            TreeEntry x = left.get(name);
+            TreeEntry y = right.get(name);
+            String path = prefix + name;
+            String xDir = x != null && x.isDirectory() ? x.getHash() : null;
+            String yDir = y != null && y.isDirectory() ? y.getHash() : null;
+            if (xDir != null || yDir != null) {
+                diff(xDir, yDir, path + "/", out);
+            }
+            String xFile = x != null && !x.isDirectory() ? x.getHash() : null;
+            String yFile = y != null && !y.isDirectory() ? y.getHash() : null;
+            if (!Objects.equals(xFile, yFile)) {
+                out.put(path, yFile);
+            }
+        }
+    }
 }
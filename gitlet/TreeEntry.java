@@ -3,8 +3,11 @@ package gitlet;
 import java.io.Serializable;
 
 public class TreeEntry implements Serializable {
+    private static final long serialVersionUID = -2929262220667378772L;
     private String path;
     private String hash;
+    /** True if HASH names a subtree rather than a blob. */
+    private boolean directory;
 
     public TreeEntry()
     {
@@ -17,6 +20,12 @@ public class TreeEntry implements Serializable {
         this.hash = hash;
     }
 
+    public TreeEntry(String path, String hash, boolean directory) {
+        this.path = path;
+        this.hash = hash;
+        this.directory = directory;
+    }
+
     public void setPath(String path) {
         this.path = path;
     }
@@ -33,7 +42,7 @@ public class TreeEntry implements Serializable {
         return this.hash;
     }
 
-    public long getSize(){
-        return this.path.length() + this.hash.length();
+    public boolean isDirectory() {
+        return this.directory;
     }
 }
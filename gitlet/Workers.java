@@ -0,0 +1,99 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/** A bounded fork-join pool for work that is independent per file, such as
+ *  hashing working files.
+ *
+ *  The number of workers is read from the gitlet.threads system property or
+ *  the GITLET_THREADS environment variable, and defaults to the number of
+ *  processors.  Setting it to 1 runs everything on the calling thread, which
+ *  gives reproducible single-threaded behaviour.
+ *
+ *  @author Abdelrahman Ezz
+ */
+class Workers {
+
+    /** Number of items handled by a task without splitting further. */
+    private static final int GRAIN = 8;
+
+    private static ForkJoinPool pool;
+
+    /** Returns the configured number of workers, at least 1. */
+    static int threads() {
+        String value = System.getProperty("gitlet.threads");
+        if (value == null) {
+            value = System.getenv("GITLET_THREADS");
+        }
+        if (value != null) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                // Fall back to the default below
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Returns FN applied to each of ITEMS, in the order of ITEMS.  Runtime
+     *  exceptions thrown by FN are rethrown on the calling thread. */
+    static <T, R> List<R> map(List<T> items, Function<T, R> fn) {
+        int n = threads();
+        if (n == 1 || items.size() <= GRAIN) {
+            List<R> result = new ArrayList<>(items.size());
+            for (T item : items) {
+                result.add(fn.apply(item));
+            }
+            return result;
+        }
+        Object[] result = new Object[items.size()];
+        pool(n).invoke(new MapTask<>(items, fn, result, 0, items.size()));
+        @SuppressWarnings("unchecked")
+        List<R> list = (List<R>) Arrays.asList(result);
+        return list;
+    }
+
+    private static synchronized ForkJoinPool pool(int n) {
+        if (pool == null || pool.getParallelism() != n) {
+            pool = new ForkJoinPool(n);
+        }
+        return pool;
+    }
+
+    /** Applies FN to ITEMS[FROM..TO), storing the results in RESULT. */
+    private static class MapTask<T, R> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> items;
+        private final Function<T, R> fn;
+        private final Object[] result;
+        private final int from;
+        private final int to;
+
+        MapTask(List<T> items, Function<T, R> fn, Object[] result, int from, int to) {
+            this.items = items;
+            this.fn = fn;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                for (int i = from; i < to; i += 1) {
+                    result[i] = fn.apply(items.get(i));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new MapTask<>(items, fn, result, from, mid),
+                    new MapTask<>(items, fn, result, mid, to));
+        }
+    }
+}